@@ -0,0 +1,44 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.TextComponent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a {@link RedisBungeeCommandSender} that keeps the messages sent to it, so that the output of an
+ * acknowledged proxy command can be sent back to the proxy that asked for it.
+ *
+ * @since 0.5
+ */
+class CapturingCommandSender extends RedisBungeeCommandSender {
+    private final List<String> output = new ArrayList<>();
+
+    synchronized List<String> getOutput() {
+        return ImmutableList.copyOf(output);
+    }
+
+    @Override
+    public synchronized void sendMessage(String s) {
+        output.add(s);
+    }
+
+    @Override
+    public synchronized void sendMessages(String... strings) {
+        for (String s : strings) {
+            output.add(s);
+        }
+    }
+
+    @Override
+    public synchronized void sendMessage(BaseComponent... baseComponents) {
+        output.add(TextComponent.toPlainText(baseComponents));
+    }
+
+    @Override
+    public synchronized void sendMessage(BaseComponent baseComponent) {
+        output.add(baseComponent.toPlainText());
+    }
+}
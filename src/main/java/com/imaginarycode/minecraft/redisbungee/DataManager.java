@@ -2,29 +2,37 @@ package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.net.InetAddresses;
-import com.google.common.util.concurrent.UncheckedExecutionException;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerChangedServerNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerJoinedNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerLeftNetworkEvent;
-import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
+import com.imaginarycode.minecraft.redisbungee.util.JsonPeek;
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PostLoginEvent;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Objects;
-import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -34,21 +42,35 @@ import java.util.logging.Level;
  * @since 0.3.3
  */
 public class DataManager implements Listener {
+    private static final byte[][] RECORD_FIELDS = {PlayerKeys.SERVER, PlayerKeys.PROXY, PlayerKeys.IP, PlayerKeys.ONLINE};
+    private static final int ABSENT_TTL_SECONDS = 5;
+    private static final String SOURCE_FIELD = "\"source\":\"";
+    private static final String ACTION_FIELD = "\"action\":\"";
+    private static final DataManagerMessage.Action[] ACTIONS = DataManagerMessage.Action.values();
+    private static final TypeAdapter<DataManagerMessage<LoginPayload>> LOGIN_ADAPTER =
+            RedisBungee.getGson().getAdapter(new TypeToken<DataManagerMessage<LoginPayload>>() {
+            });
+    private static final TypeAdapter<DataManagerMessage<LogoutPayload>> LOGOUT_ADAPTER =
+            RedisBungee.getGson().getAdapter(new TypeToken<DataManagerMessage<LogoutPayload>>() {
+            });
+    private static final TypeAdapter<DataManagerMessage<ServerChangePayload>> SERVER_CHANGE_ADAPTER =
+            RedisBungee.getGson().getAdapter(new TypeToken<DataManagerMessage<ServerChangePayload>>() {
+            });
+
     private final RedisBungee plugin;
-    private final Cache<UUID, String> serverCache = createCache();
-    private final Cache<UUID, String> proxyCache = createCache();
-    private final Cache<UUID, InetAddress> ipCache = createCache();
-    private final Cache<UUID, Long> lastOnlineCache = createCache();
+    private final Cache<UUID, PlayerRecord> recordCache;
+    // Players that were never seen may show up at any moment, so they are only remembered briefly.
+    private final Cache<UUID, Boolean> absentPlayers = CacheBuilder.newBuilder()
+            .expireAfterWrite(ABSENT_TTL_SECONDS, TimeUnit.SECONDS)
+            .maximumSize(10000)
+            .build();
+    @Getter(AccessLevel.PACKAGE)
+    private final NetworkPlayerIndex playerIndex = new NetworkPlayerIndex();
 
     public DataManager(RedisBungee plugin) {
         this.plugin = plugin;
-    }
-
-    private static <K, V> Cache<K, V> createCache() {
-        // TODO: Allow customization via cache specification, ala ServerListPlus
-        return CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .expireAfterWrite(1, TimeUnit.HOURS)
+        this.recordCache = CacheBuilder.from(RedisBungee.getConfiguration().getPlayerCacheSpec())
+                .recordStats()
                 .build();
     }
 
@@ -60,21 +82,11 @@ public class DataManager implements Listener {
         if (player != null)
             return player.getServer() != null ? player.getServer().getInfo().getName() : null;
 
-        try {
-            return serverCache.get(uuid, new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        return Objects.requireNonNull(tmpRsc.hget("player:" + uuid, "server"), "user not found");
-                    }
-                }
-            });
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().log(Level.SEVERE, "Unable to get server", e);
-            throw new RuntimeException("Unable to get server for " + uuid, e);
-        }
+        NetworkPlayerIndex.Location location = playerIndex.get(uuid);
+        if (location != null && location.getServer() != null)
+            return location.getServer();
+
+        return getRecord(uuid).getServer();
     }
 
     public String getProxy(final UUID uuid) {
@@ -83,21 +95,11 @@ public class DataManager implements Listener {
         if (player != null)
             return RedisBungee.getConfiguration().getServerId();
 
-        try {
-            return proxyCache.get(uuid, new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        return Objects.requireNonNull(tmpRsc.hget("player:" + uuid, "proxy"), "user not found");
-                    }
-                }
-            });
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().log(Level.SEVERE, "Unable to get proxy", e);
-            throw new RuntimeException("Unable to get proxy for " + uuid, e);
-        }
+        NetworkPlayerIndex.Location location = playerIndex.get(uuid);
+        if (location != null)
+            return location.getProxy();
+
+        return getRecord(uuid).getProxy();
     }
 
     public InetAddress getIp(final UUID uuid) {
@@ -106,24 +108,7 @@ public class DataManager implements Listener {
         if (player != null)
             return player.getAddress().getAddress();
 
-        try {
-            return ipCache.get(uuid, new Callable<InetAddress>() {
-                @Override
-                public InetAddress call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        String result = tmpRsc.hget("player:" + uuid, "ip");
-                        if (result == null)
-                            throw new NullPointerException("user not found");
-                        return InetAddresses.forString(result);
-                    }
-                }
-            });
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().log(Level.SEVERE, "Unable to get IP", e);
-            throw new RuntimeException("Unable to get IP for " + uuid, e);
-        }
+        return getRecord(uuid).getIp();
     }
 
     public long getLastOnline(final UUID uuid) {
@@ -132,93 +117,401 @@ public class DataManager implements Listener {
         if (player != null)
             return 0;
 
-        try {
-            return lastOnlineCache.get(uuid, new Callable<Long>() {
-                @Override
-                public Long call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        String result = tmpRsc.hget("player:" + uuid, "online");
-                        return result == null ? -1 : Long.valueOf(result);
+        return getRecord(uuid).getLastOnline();
+    }
+
+    /**
+     * Returns the statistics of the per-player record cache.
+     *
+     * @return the cache statistics
+     * @since 0.5
+     */
+    public CacheStats getCacheStats() {
+        return recordCache.stats();
+    }
+
+    public long getCacheSize() {
+        return recordCache.size();
+    }
+
+    private PlayerRecord getCachedRecord(UUID uuid) {
+        PlayerRecord cached = recordCache.getIfPresent(uuid);
+        if (cached == null && absentPlayers.getIfPresent(uuid) != null)
+            return PlayerRecord.ABSENT;
+        return cached;
+    }
+
+    private void cacheRecord(UUID uuid, PlayerRecord record) {
+        if (record == PlayerRecord.ABSENT) {
+            absentPlayers.put(uuid, Boolean.TRUE);
+        } else {
+            recordCache.put(uuid, record);
+        }
+    }
+
+    private PlayerRecord getRecord(final UUID uuid) {
+        PlayerRecord cached = getCachedRecord(uuid);
+        if (cached != null)
+            return cached;
+        if (plugin.getDegradedMode().isActive())
+            return localRecord(uuid);
+
+        PlayerRecord record;
+        try (Jedis tmpRsc = plugin.getPool().getResource()) {
+            record = PlayerRecord.fromFields(tmpRsc.hmget(PlayerKeys.player(uuid), RECORD_FIELDS));
+        } catch (JedisConnectionException e) {
+            if (plugin.getDegradedMode().enter(e))
+                return localRecord(uuid);
+            plugin.getLogger().log(Level.SEVERE, "Unable to get player data", e);
+            throw new RuntimeException("Unable to get player data for " + uuid, e);
+        }
+        cacheRecord(uuid, record);
+        return record;
+    }
+
+    /**
+     * Answers for a player from the player index while Redis is unreachable. These records are not cached. Players
+     * the index doesn't know are reported as never seen, and the addresses of players on other proxies are unknown.
+     */
+    private PlayerRecord localRecord(UUID uuid) {
+        NetworkPlayerIndex.Location location = playerIndex.get(uuid);
+        if (location == null)
+            return PlayerRecord.ABSENT;
+        return new PlayerRecord(location.getServer(), location.getProxy(), null, 0);
+    }
+
+    /**
+     * Fetches the records of many players at once. Cached records are used where possible, and all other players are
+     * fetched from Redis in a single pipeline.
+     */
+    private Map<UUID, PlayerRecord> getRecords(Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> result = new HashMap<>(uuids.size());
+        List<UUID> misses = new ArrayList<>();
+
+        for (UUID uuid : uuids) {
+            PlayerRecord record = getCachedRecord(uuid);
+            if (record != null) {
+                result.put(uuid, record);
+            } else {
+                misses.add(uuid);
+            }
+        }
+
+        if (!misses.isEmpty() && plugin.getDegradedMode().isActive()) {
+            for (UUID uuid : misses) {
+                result.put(uuid, localRecord(uuid));
+            }
+        } else if (!misses.isEmpty()) {
+            List<Response<List<byte[]>>> responses = new ArrayList<>(misses.size());
+            try (Jedis tmpRsc = plugin.getPool().getResource()) {
+                Pipeline pipeline = tmpRsc.pipelined();
+                for (UUID uuid : misses) {
+                    responses.add(pipeline.hmget(PlayerKeys.player(uuid), RECORD_FIELDS));
+                }
+                pipeline.sync();
+            } catch (JedisConnectionException e) {
+                if (plugin.getDegradedMode().enter(e)) {
+                    for (UUID uuid : misses) {
+                        result.put(uuid, localRecord(uuid));
                     }
+                    return result;
                 }
-            });
-        } catch (ExecutionException e) {
-            plugin.getLogger().log(Level.SEVERE, "Unable to get last time online", e);
-            throw new RuntimeException("Unable to get last time online for " + uuid, e);
+                plugin.getLogger().log(Level.SEVERE, "Unable to get player data for " + misses.size() + " players", e);
+                throw new RuntimeException("Unable to get player data for " + misses.size() + " players", e);
+            }
+
+            for (int i = 0; i < misses.size(); i++) {
+                PlayerRecord record = PlayerRecord.fromFields(responses.get(i).get());
+                cacheRecord(misses.get(i), record);
+                result.put(misses.get(i), record);
+            }
         }
+
+        return result;
+    }
+
+    public Map<UUID, String> getServers(Collection<UUID> uuids) {
+        return new BulkLookup<String>() {
+            @Override
+            String fromPlayer(ProxiedPlayer player) {
+                return player.getServer() != null ? player.getServer().getInfo().getName() : null;
+            }
+
+            @Override
+            String fromIndex(NetworkPlayerIndex.Location location) {
+                return location.getServer();
+            }
+
+            @Override
+            String fromRecord(PlayerRecord record) {
+                return record.getServer();
+            }
+        }.lookup(uuids);
+    }
+
+    public Map<UUID, String> getProxies(Collection<UUID> uuids) {
+        return new BulkLookup<String>() {
+            @Override
+            String fromPlayer(ProxiedPlayer player) {
+                return RedisBungee.getConfiguration().getServerId();
+            }
+
+            @Override
+            String fromIndex(NetworkPlayerIndex.Location location) {
+                return location.getProxy();
+            }
+
+            @Override
+            String fromRecord(PlayerRecord record) {
+                return record.getProxy();
+            }
+        }.lookup(uuids);
+    }
+
+    public Map<UUID, InetAddress> getIps(Collection<UUID> uuids) {
+        return new BulkLookup<InetAddress>() {
+            @Override
+            InetAddress fromPlayer(ProxiedPlayer player) {
+                return player.getAddress().getAddress();
+            }
+
+            @Override
+            InetAddress fromRecord(PlayerRecord record) {
+                return record.getIp();
+            }
+        }.lookup(uuids);
+    }
+
+    public Map<UUID, Long> getLastOnline(Collection<UUID> uuids) {
+        return new BulkLookup<Long>() {
+            @Override
+            Long fromPlayer(ProxiedPlayer player) {
+                return 0L;
+            }
+
+            @Override
+            Long fromRecord(PlayerRecord record) {
+                return record.getLastOnline();
+            }
+        }.lookup(uuids);
     }
 
     private void invalidate(UUID uuid) {
-        ipCache.invalidate(uuid);
-        lastOnlineCache.invalidate(uuid);
-        serverCache.invalidate(uuid);
-        proxyCache.invalidate(uuid);
+        recordCache.invalidate(uuid);
+        absentPlayers.invalidate(uuid);
     }
 
     @EventHandler
     public void onPostLogin(PostLoginEvent event) {
         // Invalidate all entries related to this player, since they now lie.
         invalidate(event.getPlayer().getUniqueId());
+        playerIndex.join(event.getPlayer().getUniqueId(), RedisBungee.getConfiguration().getServerId(), event.getPlayer().getName());
     }
 
     @EventHandler
     public void onPlayerDisconnect(PlayerDisconnectEvent event) {
         // Invalidate all entries related to this player, since they now lie.
         invalidate(event.getPlayer().getUniqueId());
+        playerIndex.leave(event.getPlayer().getUniqueId());
     }
 
     @EventHandler
-    public void onPubSubMessage(PubSubMessageEvent event) {
-        if (!event.getChannel().equals("redisbungee-data"))
-            return;
+    public void onServerConnected(ServerConnectedEvent event) {
+        playerIndex.serverChange(event.getPlayer().getUniqueId(), event.getServer().getInfo().getName());
+    }
 
-        // Partially deserialize the message so we can look at the action
-        JsonObject jsonObject = parser.parse(event.getMessage()).getAsJsonObject();
+    /**
+     * Handles a network event sent by another proxy. This is called directly from the PubSub or stream reader thread,
+     * so it only updates local state and hands the events to the {@link NetworkEventRegistry}, which skips creating
+     * them when nothing is listening.
+     * <p>
+     * The source and action are read without parsing the message, so messages that this proxy sent itself are
+     * dropped without allocating anything.
+     */
+    void handle(String message) {
+        String serverId = RedisBungee.getConfiguration().getServerId();
+
+        if (JsonPeek.valueEquals(message, SOURCE_FIELD, serverId))
+            return;
 
-        String source = jsonObject.get("source").getAsString();
+        DataManagerMessage.Action action = JsonPeek.valueOf(message, ACTION_FIELD, ACTIONS);
 
-        if (source.equals(RedisBungee.getConfiguration().getServerId()))
-            return;
+        if (action == null) {
+            // Not written by Gson the way we expect, so parse it fully.
+            action = DataManagerMessage.Action.valueOf(parser.parse(message).getAsJsonObject().get("action").getAsString());
+        }
 
-        DataManagerMessage.Action action = DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
-
-        switch (action) {
-            case JOIN:
-                final DataManagerMessage<LoginPayload> message1 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LoginPayload>>() {
-                }.getType());
-                proxyCache.put(message1.getTarget(), message1.getSource());
-                lastOnlineCache.put(message1.getTarget(), (long) 0);
-                ipCache.put(message1.getTarget(), message1.getPayload().getAddress());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        plugin.getProxy().getPluginManager().callEvent(new PlayerJoinedNetworkEvent(message1.getTarget()));
-                    }
-                });
-                break;
-            case LEAVE:
-                final DataManagerMessage<LogoutPayload> message2 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LogoutPayload>>() {
-                }.getType());
-                invalidate(message2.getTarget());
-                lastOnlineCache.put(message2.getTarget(), message2.getPayload().getTimestamp());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        plugin.getProxy().getPluginManager().callEvent(new PlayerLeftNetworkEvent(message2.getTarget()));
-                    }
-                });
-                break;
-            case SERVER_CHANGE:
-                final DataManagerMessage<ServerChangePayload> message3 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<ServerChangePayload>>() {
-                }.getType());
-                serverCache.put(message3.getTarget(), message3.getPayload().getServer());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        plugin.getProxy().getPluginManager().callEvent(new PlayerChangedServerNetworkEvent(message3.getTarget(), message3.getPayload().getOldServer(), message3.getPayload().getServer()));
+        try {
+            switch (action) {
+                case JOIN:
+                    DataManagerMessage<LoginPayload> message1 = LOGIN_ADAPTER.fromJson(message);
+                    if (message1.getSource().equals(serverId))
+                        return;
+                    recordCache.put(message1.getTarget(), new PlayerRecord(null, message1.getSource(), message1.getPayload().getAddress(), 0));
+                    // Proxies running older versions do not send the name, so the player can't be searched for.
+                    playerIndex.join(message1.getTarget(), message1.getSource(), message1.getPayload().getName());
+                    if (plugin.getEventRegistry().isInterested(PlayerJoinedNetworkEvent.class))
+                        plugin.getEventRegistry().post(new PlayerJoinedNetworkEvent(message1.getTarget()));
+                    break;
+                case LEAVE:
+                    DataManagerMessage<LogoutPayload> message2 = LOGOUT_ADAPTER.fromJson(message);
+                    if (message2.getSource().equals(serverId))
+                        return;
+                    recordCache.put(message2.getTarget(), new PlayerRecord(null, null, null, message2.getPayload().getTimestamp()));
+                    playerIndex.leave(message2.getTarget());
+                    if (plugin.getEventRegistry().isInterested(PlayerLeftNetworkEvent.class))
+                        plugin.getEventRegistry().post(new PlayerLeftNetworkEvent(message2.getTarget()));
+                    break;
+                case SERVER_CHANGE:
+                    DataManagerMessage<ServerChangePayload> message3 = SERVER_CHANGE_ADAPTER.fromJson(message);
+                    if (message3.getSource().equals(serverId))
+                        return;
+                    PlayerRecord record = recordCache.getIfPresent(message3.getTarget());
+                    if (record != null && record.getProxy() != null) {
+                        recordCache.put(message3.getTarget(), new PlayerRecord(message3.getPayload().getServer(), record.getProxy(), record.getIp(), 0));
+                    } else {
+                        invalidate(message3.getTarget());
                     }
-                });
-                break;
+                    playerIndex.serverChange(message3.getTarget(), message3.getPayload().getServer());
+                    if (plugin.getEventRegistry().isInterested(message3.getPayload().getOldServer(), message3.getPayload().getServer()))
+                        plugin.getEventRegistry().post(new PlayerChangedServerNetworkEvent(message3.getTarget(), message3.getPayload().getOldServer(), message3.getPayload().getServer()));
+                    break;
+            }
+        } catch (IOException e) {
+            throw new JsonParseException("Unable to decode network event", e);
+        }
+    }
+
+    /**
+     * Returns the players seen from an address or subnet key built by {@link PlayerKeys}, along with the last time
+     * each was seen there, most recent first. This takes a single round trip.
+     */
+    Map<UUID, Long> getPlayersByAddress(byte[] key) {
+        int historyDays = RedisBungee.getConfiguration().getIpHistoryDays();
+        double since = historyDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(historyDays) : Double.NEGATIVE_INFINITY;
+        return getSeenSince(key, since, 0, -1);
+    }
+
+    /**
+     * Returns the players in the activity index that were last seen at or after a time, most recent first. Players
+     * that are online are listed with the time they logged in. This usually takes a single round trip.
+     *
+     * @param since  the earliest time to include
+     * @param offset the number of entries of the index to skip
+     * @param count  the maximum number of players to return, or -1 for all of them
+     */
+    Map<UUID, Long> getRecentlySeen(long since, int offset, int count) {
+        return getSeenSince(PlayerKeys.LAST_SEEN, since, offset, count);
+    }
+
+    private Map<UUID, Long> getSeenSince(byte[] key, double since, int offset, int count) {
+        Map<UUID, Long> players = new LinkedHashMap<>();
+        try (Jedis tmpRsc = plugin.getPool().getResource()) {
+            if (count < 0) {
+                addSeen(players, tmpRsc.zrevrangeByScoreWithScores(key, Double.POSITIVE_INFINITY, since));
+            } else {
+                // A player may be in the index in both UUID formats, so keep fetching until the page is full.
+                int position = offset;
+                while (players.size() < count) {
+                    int wanted = count - players.size();
+                    Set<Tuple> seen = tmpRsc.zrevrangeByScoreWithScores(key, Double.POSITIVE_INFINITY, since, position, wanted);
+                    addSeen(players, seen);
+                    if (seen.size() < wanted)
+                        break;
+                    position += seen.size();
+                }
+            }
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to get players from " + SafeEncoder.encode(key), e);
+            throw new RuntimeException("Unable to get players from " + SafeEncoder.encode(key), e);
+        }
+        return ImmutableMap.copyOf(players);
+    }
+
+    /**
+     * Adds the players in a range of an index, most recent first. Only the first, most recent time of each player is
+     * kept, as a player stored in both UUID formats is in the index twice.
+     */
+    private static void addSeen(Map<UUID, Long> players, Set<Tuple> seen) {
+        for (Tuple tuple : seen) {
+            UUID uuid;
+            try {
+                uuid = PlayerKeys.fromMember(tuple.getBinaryElement());
+            } catch (IllegalArgumentException ignored) {
+                continue;
+            }
+            if (!players.containsKey(uuid))
+                players.put(uuid, (long) tuple.getScore());
+        }
+    }
+
+    /**
+     * Answers a lookup for many players at once. Local players and the player index are consulted first, and the
+     * records of everyone else are fetched with {@link #getRecords(Collection)}.
+     */
+    private abstract class BulkLookup<V> {
+        abstract V fromPlayer(ProxiedPlayer player);
+
+        V fromIndex(NetworkPlayerIndex.Location location) {
+            return null;
+        }
+
+        abstract V fromRecord(PlayerRecord record);
+
+        Map<UUID, V> lookup(Collection<UUID> uuids) {
+            Map<UUID, V> result = new HashMap<>(uuids.size());
+            List<UUID> remaining = new ArrayList<>();
+
+            for (UUID uuid : uuids) {
+                ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
+                if (player != null) {
+                    V value = fromPlayer(player);
+                    if (value != null)
+                        result.put(uuid, value);
+                    continue;
+                }
+                NetworkPlayerIndex.Location location = playerIndex.get(uuid);
+                V value = location != null ? fromIndex(location) : null;
+                if (value != null) {
+                    result.put(uuid, value);
+                } else {
+                    remaining.add(uuid);
+                }
+            }
+
+            for (Map.Entry<UUID, PlayerRecord> entry : getRecords(remaining).entrySet()) {
+                V value = fromRecord(entry.getValue());
+                if (value != null)
+                    result.put(entry.getKey(), value);
+            }
+
+            return ImmutableMap.copyOf(result);
+        }
+    }
+
+    /**
+     * The data stored in Redis for a single player. Players that have never been seen are represented by
+     * {@link #ABSENT}, which is cached for a few seconds only.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    static class PlayerRecord {
+        static final PlayerRecord ABSENT = new PlayerRecord(null, null, null, -1);
+
+        private final String server;
+        private final String proxy;
+        private final InetAddress ip;
+        private final long lastOnline;
+
+        static PlayerRecord fromFields(List<byte[]> fields) {
+            byte[] server = fields.get(0), proxy = fields.get(1), ip = fields.get(2), online = fields.get(3);
+            if (server == null && proxy == null && ip == null && online == null)
+                return ABSENT;
+            return new PlayerRecord(
+                    server == null ? null : SafeEncoder.encode(server),
+                    proxy == null ? null : SafeEncoder.encode(proxy),
+                    ip == null ? null : InetAddresses.forString(SafeEncoder.encode(ip)),
+                    online == null ? -1 : Long.parseLong(SafeEncoder.encode(online)));
         }
     }
 
@@ -241,6 +534,7 @@ public class DataManager implements Listener {
     @RequiredArgsConstructor
     static class LoginPayload {
         private final InetAddress address;
+        private final String name;
     }
 
     @Getter
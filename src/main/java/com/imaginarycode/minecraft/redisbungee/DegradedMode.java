@@ -0,0 +1,363 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.net.InetAddresses;
+import com.google.gson.TypeAdapter;
+import com.imaginarycode.minecraft.redisbungee.util.MappedJournal;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * This class keeps the proxy running while Redis is unreachable.
+ * <p>
+ * Once a write to Redis fails, the proxy is degraded: logins are checked against local state only, reads are
+ * answered from the local player index, and the writes for this proxy's players are recorded in a bounded journal
+ * instead. When Redis answers again, the journal is replayed in order, superseded writes to the same player are
+ * skipped, and an integrity check fixes anything the journal could not hold.
+ * <p>
+ * The journal can be kept in a {@link MappedJournal} on disk, so that it survives the proxy being stopped or
+ * crashing during an outage. Its records are only removed once Redis has acknowledged their replay.
+ *
+ * @since 0.5
+ */
+class DegradedMode implements Closeable {
+    private static final TypeAdapter<Mutation> ADAPTER = RedisBungee.getGson().getAdapter(Mutation.class);
+
+    private final RedisBungee plugin;
+    private final boolean enabled;
+    private final int maxJournalSize;
+    private final MappedJournal diskJournal;
+
+    // All guarded by this.
+    private final Deque<Mutation> journal = new ArrayDeque<>();
+    private boolean overflowed = false;
+    private volatile boolean active = false;
+    private long degradedSince;
+
+    /**
+     * @param diskJournal the journal on disk to record writes in, or null to keep them in memory
+     */
+    DegradedMode(RedisBungee plugin, boolean enabled, int maxJournalSize, MappedJournal diskJournal) {
+        this.plugin = plugin;
+        this.enabled = enabled;
+        this.maxJournalSize = Math.max(1, maxJournalSize);
+        this.diskJournal = diskJournal;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    synchronized int getJournalSize() {
+        return diskJournal != null ? diskJournal.size() : journal.size();
+    }
+
+    /**
+     * Marks Redis as unreachable.
+     *
+     * @return whether the proxy is now degraded, which is false if degraded mode is turned off
+     */
+    boolean enter(Exception cause) {
+        if (!enabled)
+            return false;
+        synchronized (this) {
+            if (active)
+                return true;
+            active = true;
+            degradedSince = System.currentTimeMillis();
+        }
+        plugin.getLogger().log(Level.SEVERE, "Redis is unreachable, serving players from local state until it comes back", cause);
+        return true;
+    }
+
+    /**
+     * Applies a write to Redis, or records it in the journal while Redis is unreachable.
+     */
+    void write(Mutation mutation) {
+        if (!journalIfActive(mutation)) {
+            try (Jedis jedis = plugin.getPool().getResource()) {
+                Pipeline pipeline = jedis.pipelined();
+                mutation.apply(pipeline);
+                plugin.getLuaManager().sync(jedis, pipeline);
+                return;
+            } catch (JedisConnectionException e) {
+                if (!enter(e)) {
+                    plugin.getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+                    throw new RuntimeException("Unable to write " + mutation, e);
+                }
+            }
+            if (!journalIfActive(mutation)) {
+                // Redis came back while this write failed.
+                write(mutation);
+            }
+        }
+    }
+
+    private synchronized boolean journalIfActive(Mutation mutation) {
+        if (!active)
+            return false;
+        record(mutation);
+        return true;
+    }
+
+    private void record(Mutation mutation) {
+        if (diskJournal != null) {
+            // A full journal on disk keeps the oldest writes, the integrity check catches up on the rest.
+            if (!diskJournal.append(SafeEncoder.encode(ADAPTER.toJson(mutation))))
+                overflowed = true;
+            return;
+        }
+        if (journal.size() >= maxJournalSize) {
+            journal.poll();
+            overflowed = true;
+        }
+        journal.add(mutation);
+    }
+
+    /**
+     * Forces the writes recorded since the last flush to disk, so that all writes recorded in a short period share
+     * a single sync.
+     */
+    void flush() {
+        if (diskJournal != null)
+            diskJournal.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (diskJournal != null)
+            diskJournal.close();
+    }
+
+    /**
+     * Replays the writes left on disk by the last run of the proxy, which was stopped or crashed while Redis was
+     * unreachable. Must be called before the first integrity check.
+     */
+    void replayLeftovers() {
+        synchronized (this) {
+            if (diskJournal == null || diskJournal.size() == 0)
+                return;
+            // No one is connected to a proxy that just started, so everyone the journal left online has left since.
+            Map<UUID, Mutation> last = new LinkedHashMap<>();
+            for (Mutation mutation : decode(diskJournal.read())) {
+                last.put(mutation.getPlayer(), mutation);
+            }
+            for (Mutation mutation : last.values()) {
+                if (mutation.getType() != Mutation.Type.LEAVE)
+                    record(Mutation.leave(mutation.getPlayer(), mutation.getTimestamp()));
+            }
+            active = true;
+            degradedSince = System.currentTimeMillis();
+        }
+        plugin.getLogger().info("Replaying " + getJournalSize() + " writes that were left in the journal while Redis was unreachable...");
+        recover();
+    }
+
+    private List<Mutation> decode(List<byte[]> records) {
+        List<Mutation> mutations = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            try {
+                mutations.add(ADAPTER.fromJson(SafeEncoder.encode(record)));
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Skipping a journal entry that could not be read", e);
+            }
+        }
+        return mutations;
+    }
+
+    /**
+     * Replays the journal once Redis answers again, and leaves degraded mode once it is empty.
+     *
+     * @return whether the journal was replayed, in which case an integrity check should follow
+     */
+    boolean recover() {
+        if (!active)
+            return false;
+        int replayed = 0;
+        int skipped = 0;
+        boolean wasOverflowed;
+        while (true) {
+            List<Mutation> batch;
+            int records;
+            synchronized (this) {
+                if (getJournalSize() == 0) {
+                    active = false;
+                    wasOverflowed = overflowed;
+                    overflowed = false;
+                    break;
+                }
+                if (diskJournal != null) {
+                    // Records stay on disk until Redis has acknowledged them.
+                    List<byte[]> raw = diskJournal.read();
+                    records = raw.size();
+                    batch = decode(raw);
+                } else {
+                    batch = new ArrayList<>(journal);
+                    records = batch.size();
+                    journal.clear();
+                }
+            }
+
+            List<Mutation> deduplicated = deduplicate(batch);
+            try (Jedis jedis = plugin.getPool().getResource()) {
+                Pipeline pipeline = jedis.pipelined();
+                for (Mutation mutation : deduplicated) {
+                    mutation.replay(pipeline);
+                }
+                plugin.getLuaManager().sync(jedis, pipeline);
+            } catch (JedisConnectionException e) {
+                if (diskJournal == null) {
+                    // Put the batch back in front of anything recorded in the meantime, and try again later.
+                    synchronized (this) {
+                        for (Mutation mutation : Lists.reverse(batch)) {
+                            journal.addFirst(mutation);
+                        }
+                    }
+                }
+                plugin.getLogger().log(Level.WARNING, "Unable to replay the journal, will retry", e);
+                return false;
+            }
+            if (diskJournal != null) {
+                diskJournal.discard(records);
+            }
+            replayed += deduplicated.size();
+            skipped += batch.size() - deduplicated.size();
+        }
+
+        long seconds = (System.currentTimeMillis() - degradedSince) / 1000;
+        plugin.getLogger().info("Redis is reachable again after " + seconds + " seconds. Replayed " + replayed +
+                " writes (" + skipped + " superseded)" + (wasOverflowed ? ", some writes did not fit in the journal." : "."));
+        return true;
+    }
+
+    /**
+     * Drops the writes that a later write to the same player makes pointless, keeping the rest in order. Of each
+     * player, only the last join, the last leave, and the last server change are kept, and a server change only if
+     * the player did not leave afterwards.
+     */
+    static List<Mutation> deduplicate(List<Mutation> mutations) {
+        Map<UUID, Set<Mutation.Type>> seen = new HashMap<>();
+        List<Mutation> kept = new ArrayList<>(mutations.size());
+        for (Mutation mutation : Lists.reverse(mutations)) {
+            Set<Mutation.Type> types = seen.get(mutation.getPlayer());
+            if (types == null) {
+                seen.put(mutation.getPlayer(), types = EnumSet.noneOf(Mutation.Type.class));
+            }
+            boolean superseded = types.contains(mutation.getType()) ||
+                    (mutation.getType() == Mutation.Type.SERVER_CHANGE && types.contains(Mutation.Type.LEAVE));
+            types.add(mutation.getType());
+            if (!superseded)
+                kept.add(mutation);
+        }
+        return ImmutableList.copyOf(Lists.reverse(kept));
+    }
+
+    /**
+     * A write to the state of one of this proxy's players.
+     */
+    @Getter
+    @ToString
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    static class Mutation {
+        private final Type type;
+        private final UUID player;
+        private final String name;
+        private final String address;
+        private final String server;
+        private final String previousServer;
+        private final long timestamp;
+        // Whether the login already wrote a join's player to Redis.
+        private final boolean written;
+
+        /**
+         * @param written whether the player was written to Redis when they logged in, which is not the case if the
+         *                login was only checked against local state
+         */
+        static Mutation join(UUID player, String name, InetAddress address, boolean written) {
+            return new Mutation(Type.JOIN, player, name, address.getHostAddress(), null, null, System.currentTimeMillis(), written);
+        }
+
+        static Mutation serverChange(UUID player, String server, String previousServer) {
+            return new Mutation(Type.SERVER_CHANGE, player, null, null, server, previousServer, System.currentTimeMillis(), false);
+        }
+
+        static Mutation leave(UUID player) {
+            return leave(player, System.currentTimeMillis());
+        }
+
+        static Mutation leave(UUID player, long timestamp) {
+            return new Mutation(Type.LEAVE, player, null, null, null, null, timestamp, false);
+        }
+
+        /**
+         * Applies the write as it happens. If the player was already written to Redis when they logged in, a join
+         * only announces them.
+         */
+        void apply(Pipeline pipeline) {
+            switch (type) {
+                case JOIN:
+                    if (!written) {
+                        // The login was checked while degraded, but Redis came back before the player got here.
+                        replay(pipeline);
+                        break;
+                    }
+                    RedisBungee.getEventStream().publish(pipeline, RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+                            player, DataManager.DataManagerMessage.Action.JOIN,
+                            new DataManager.LoginPayload(InetAddresses.forString(address), name))));
+                    break;
+                default:
+                    replay(pipeline);
+                    break;
+            }
+        }
+
+        /**
+         * Applies the write after an outage, when the player may never have been written to Redis.
+         */
+        void replay(Pipeline pipeline) {
+            switch (type) {
+                case JOIN:
+                    RedisUtil.createPlayer(player, name, InetAddresses.forString(address), pipeline, true);
+                    break;
+                case SERVER_CHANGE:
+                    RedisUtil.changeServer(player, server, previousServer, pipeline);
+                    break;
+                case LEAVE:
+                    RedisUtil.cleanUpPlayer(player, timestamp, pipeline);
+                    break;
+            }
+        }
+
+        enum Type {
+            JOIN,
+            SERVER_CHANGE,
+            LEAVE
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * This class makes sure only one running proxy uses a proxy ID.
+ * <p>
+ * A proxy takes a lease on its ID when it starts, and the heartbeat renews it. The lease expires a few seconds
+ * after the proxy stops renewing it, so an instance restarting after a crash takes the ID over as soon as the old
+ * lease runs out, while a second instance started with the same ID is turned away.
+ * <p>
+ * Every time the lease changes hands, its fencing token goes up. Scripts that write on behalf of a proxy compare the
+ * token they were given against the current one, so an instance that stalled and lost its lease can't overwrite
+ * the state of the instance that took over.
+ *
+ * @since 0.5
+ */
+class InstanceLease {
+    static final long LEASE_MILLIS = 10000;
+
+    private final RedisBungee plugin;
+    private final String serverId;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final LuaManager.Script script;
+    private volatile String token;
+    private volatile boolean lost = false;
+
+    InstanceLease(RedisBungee plugin, String serverId, LuaManager manager) {
+        this.plugin = plugin;
+        this.serverId = serverId;
+        this.script = manager.getScript("proxy_lease");
+    }
+
+    static String leaseKey(String proxyId) {
+        return "proxy-lease:" + proxyId;
+    }
+
+    static String tokenKey(String proxyId) {
+        return "proxy-token:" + proxyId;
+    }
+
+    /**
+     * @return the fencing token of this instance, to pass to scripts that check it against {@link #tokenKey(String)}
+     */
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * @return whether another instance took over the proxy ID
+     */
+    boolean isLost() {
+        return lost;
+    }
+
+    private long call(long millis) {
+        return (Long) script.eval(ImmutableList.of(leaseKey(serverId), tokenKey(serverId)),
+                ImmutableList.of(instanceId, String.valueOf(millis)));
+    }
+
+    /**
+     * Takes the lease, waiting once for a lease left behind by a crashed instance to run out.
+     *
+     * @throws RuntimeException if another instance is still renewing the lease
+     */
+    void acquire() {
+        long result = call(LEASE_MILLIS);
+        if (result < 0) {
+            plugin.getLogger().info("The lease on proxy ID " + serverId + " is still held, waiting " + -result +
+                    "ms for it to expire in case the last instance crashed...");
+            try {
+                Thread.sleep(-result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the lease on proxy ID " + serverId, e);
+            }
+            result = call(LEASE_MILLIS);
+        }
+        if (result < 0) {
+            plugin.getLogger().severe("You have launched a possible impostor BungeeCord instance. Another instance is already running with proxy ID " + serverId + ".");
+            plugin.getLogger().severe("For data consistency reasons, RedisBungee will now disable itself.");
+            throw new RuntimeException("Possible impostor instance!");
+        }
+        token = String.valueOf(result);
+    }
+
+    /**
+     * Renews the lease, or takes it back if it expired while nobody else held it.
+     *
+     * @return false if another instance holds the lease, in which case this instance must stop writing
+     */
+    boolean renew() {
+        long result = call(LEASE_MILLIS);
+        if (result < 0) {
+            if (!lost) {
+                lost = true;
+                plugin.getLogger().severe("Another instance took over proxy ID " + serverId + ". This instance will no longer write to Redis.");
+            }
+            return false;
+        }
+        String renewed = String.valueOf(result);
+        if (!renewed.equals(token)) {
+            plugin.getLogger().warning("The lease on proxy ID " + serverId + " expired and was taken back, writes made in the meantime may have been fenced out.");
+            token = renewed;
+        }
+        lost = false;
+        return true;
+    }
+
+    void release() {
+        try {
+            call(0);
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to release the lease on proxy ID " + serverId, e);
+        }
+    }
+}
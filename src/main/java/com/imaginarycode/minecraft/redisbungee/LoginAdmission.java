@@ -0,0 +1,290 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.event.LoginEvent;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * This class keeps logins from piling up when Redis is slow or unavailable.
+ * <p>
+ * Only a limited number of logins talk to Redis at once; the rest wait in a queue, and logins that arrive while the
+ * queue is full are turned away with a friendly message. The limit drops to a quarter while the average Redis time
+ * of recent logins is above the configured threshold. After several logins in a row failed to reach Redis, logins
+ * are turned away right away for a few seconds instead of waiting for Redis, unless {@link DegradedMode} lets them
+ * in based on local state. Logins are turned away altogether while another instance holds the lease on our proxy
+ * ID, as we can't write their players anymore.
+ *
+ * @since 0.5
+ */
+public class LoginAdmission {
+    private static final BaseComponent[] BUSY =
+            new ComponentBuilder("The network is very busy right now.").color(ChatColor.RED)
+                    .append("\n\nPlease try to connect again in a moment.")
+                    .color(ChatColor.GRAY)
+                    .create();
+    private static final BaseComponent[] UNAVAILABLE =
+            new ComponentBuilder("This proxy is not accepting players right now.").color(ChatColor.RED)
+                    .append("\n\nPlease try to connect again in a moment.")
+                    .color(ChatColor.GRAY)
+                    .create();
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final int FAILURES_BEFORE_FAILING_FAST = 3;
+    private static final long FAIL_FAST_MILLIS = 5000;
+
+    private final RedisBungee plugin;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final double latencyThresholdMillis;
+    private final long queueTimeoutNanos;
+
+    // All guarded by this.
+    private final Deque<QueuedLogin> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    private int consecutiveFailures = 0;
+    private long failFastUntil = 0;
+    private volatile double latencyMillis = 0;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong failedFast = new AtomicLong();
+
+    LoginAdmission(RedisBungee plugin, int maxInFlight, int maxQueued, int latencyThresholdMillis, int queueTimeoutMillis) {
+        this.plugin = plugin;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.latencyThresholdMillis = latencyThresholdMillis;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    /**
+     * Runs a login's Redis work once it is admitted, and completes the login's intent afterwards. The event must
+     * already hold an intent.
+     */
+    void admit(LoginEvent event, LoginTask task) {
+        if (plugin.getLease().isLost()) {
+            shed.incrementAndGet();
+            reject(event, UNAVAILABLE);
+            return;
+        }
+
+        if (plugin.getDegradedMode().isActive()) {
+            admitted.incrementAndGet();
+            executeLocally(event, task);
+            return;
+        }
+
+        boolean run = false;
+        synchronized (this) {
+            if (isFailingFast()) {
+                failedFast.incrementAndGet();
+            } else if (inFlight < limit()) {
+                inFlight++;
+                admitted.incrementAndGet();
+                run = true;
+            } else if (queue.size() < maxQueued) {
+                queue.add(new QueuedLogin(event, task, System.nanoTime()));
+                queued.incrementAndGet();
+                return;
+            } else {
+                shed.incrementAndGet();
+            }
+        }
+
+        if (run) {
+            execute(event, task);
+        } else {
+            reject(event);
+        }
+    }
+
+    private boolean isFailingFast() {
+        return System.currentTimeMillis() < failFastUntil;
+    }
+
+    private int limit() {
+        return latencyMillis > latencyThresholdMillis ? Math.max(1, maxInFlight / 4) : maxInFlight;
+    }
+
+    private void execute(final LoginEvent event, final LoginTask task) {
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                boolean reachedRedis = false;
+                try (Jedis jedis = plugin.getPool().getResource()) {
+                    if (!event.isCancelled()) {
+                        task.run(jedis);
+                    }
+                    reachedRedis = true;
+                } catch (JedisConnectionException e) {
+                    if (plugin.getDegradedMode().enter(e)) {
+                        task.runLocally();
+                    } else {
+                        plugin.getLogger().log(Level.WARNING, "Unable to check the login of " + event.getConnection().getName() + " with Redis", e);
+                        cancel(event);
+                    }
+                } catch (JedisException e) {
+                    // Redis is up but refused this login's commands, which says nothing about the other logins.
+                    plugin.getLogger().log(Level.SEVERE, "Unable to check the login of " + event.getConnection().getName() + " with Redis", e);
+                    cancel(event);
+                } finally {
+                    event.completeIntent(plugin);
+                    finished(System.nanoTime() - start, reachedRedis);
+                }
+            }
+        });
+    }
+
+    private void executeLocally(final LoginEvent event, final LoginTask task) {
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!event.isCancelled()) {
+                        task.runLocally();
+                    }
+                } finally {
+                    event.completeIntent(plugin);
+                }
+            }
+        });
+    }
+
+    private void finished(long nanos, boolean reachedRedis) {
+        List<QueuedLogin> toRun = new ArrayList<>();
+        List<QueuedLogin> toReject = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            latencyMillis += LATENCY_WEIGHT * (nanos / 1e6 - latencyMillis);
+            if (reachedRedis) {
+                consecutiveFailures = 0;
+            } else if (++consecutiveFailures >= FAILURES_BEFORE_FAILING_FAST && !isFailingFast()) {
+                consecutiveFailures = 0;
+                failFastUntil = System.currentTimeMillis() + FAIL_FAST_MILLIS;
+                plugin.getLogger().warning("Redis is unavailable, turning away logins for the next " + FAIL_FAST_MILLIS / 1000 + " seconds.");
+            }
+
+            long now = System.nanoTime();
+            while (!queue.isEmpty() && (isFailingFast() || inFlight < limit())) {
+                QueuedLogin next = queue.poll();
+                if (isFailingFast() || now - next.queuedAt > queueTimeoutNanos) {
+                    toReject.add(next);
+                } else {
+                    inFlight++;
+                    admitted.incrementAndGet();
+                    toRun.add(next);
+                }
+            }
+        }
+
+        for (QueuedLogin login : toReject) {
+            shed.incrementAndGet();
+            reject(login.event);
+        }
+        for (QueuedLogin login : toRun) {
+            execute(login.event, login.task);
+        }
+    }
+
+    private void cancel(LoginEvent event) {
+        event.setCancelled(true);
+        // TODO: Make it accept a BaseComponent[] like everything else.
+        event.setCancelReason(TextComponent.toLegacyText(BUSY));
+    }
+
+    private void reject(LoginEvent event) {
+        reject(event, BUSY);
+    }
+
+    private void reject(LoginEvent event, BaseComponent[] reason) {
+        event.setCancelled(true);
+        // TODO: Make it accept a BaseComponent[] like everything else.
+        event.setCancelReason(TextComponent.toLegacyText(reason));
+        event.completeIntent(plugin);
+    }
+
+    /**
+     * @return whether logins are being admitted normally, more slowly because Redis is slow, or not at all because
+     * Redis is unavailable
+     */
+    public final synchronized State getState() {
+        if (isFailingFast())
+            return State.FAILING;
+        return limit() < maxInFlight ? State.DEGRADED : State.NORMAL;
+    }
+
+    public final synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public final synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * @return the moving average of the time logins spent talking to Redis, in milliseconds
+     */
+    public final double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public final long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    public final long getQueuedCount() {
+        return queued.get();
+    }
+
+    public final long getShedCount() {
+        return shed.get();
+    }
+
+    public final long getFailedFastCount() {
+        return failedFast.get();
+    }
+
+    public enum State {
+        NORMAL,
+        DEGRADED,
+        FAILING
+    }
+
+    /**
+     * The Redis work of one login.
+     */
+    interface LoginTask {
+        void run(Jedis jedis);
+
+        /**
+         * Checks the login against local state only, while Redis is unreachable.
+         */
+        void runLocally();
+    }
+
+    private static class QueuedLogin {
+        private final LoginEvent event;
+        private final LoginTask task;
+        private final long queuedAt;
+
+        QueuedLogin(LoginEvent event, LoginTask task, long queuedAt) {
+            this.event = event;
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.imaginarycode.minecraft.redisbungee.events.PlayerChangedServerNetworkEvent;
+import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
+import lombok.NonNull;
+import net.md_5.bungee.api.plugin.Event;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+/**
+ * This class routes network events and PubSub messages to the code that is interested in them.
+ * <p>
+ * Handlers can subscribe to an event type, to the messages of one PubSub channel, or to the players changing to or
+ * from one backend server. Channels are looked up in a hash map, and server changes are only turned into events if
+ * something will receive them.
+ * <p>
+ * {@link PubSubMessageEvent} and the network player events are still posted to BungeeCord's event bus, so existing
+ * listeners keep working. Networks where every plugin subscribes through the registry can stop posting an event type
+ * to the bus with {@link #setPostedToEventBus(Class, boolean)}, so that it is only created when a handler wants it.
+ *
+ * @since 0.5
+ */
+public class NetworkEventRegistry {
+    private final RedisBungee plugin;
+    private final Map<String, MessageHandler> routes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<MessageHandler>> channelHandlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, List<Handler<?>>> typeHandlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<Handler<PlayerChangedServerNetworkEvent>>> serverHandlers = new ConcurrentHashMap<>();
+    private final Set<Class<?>> keptOffBus = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    NetworkEventRegistry(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Subscribes to all events of a type, such as {@link com.imaginarycode.minecraft.redisbungee.events.PlayerJoinedNetworkEvent}
+     * or {@link PubSubMessageEvent}. The handler is called asynchronously.
+     *
+     * @param type    the event type
+     * @param handler the handler
+     */
+    public final <E extends Event> void subscribe(@NonNull Class<E> type, @NonNull Handler<? super E> handler) {
+        listFor(typeHandlers, type).add(handler);
+    }
+
+    /**
+     * Subscribes to the messages sent on a PubSub channel. The channel must also be registered with
+     * {@link RedisBungeeAPI#registerPubSubChannels(String...)}. The handler is called asynchronously.
+     *
+     * @param channel the channel
+     * @param handler the handler
+     */
+    public final void subscribe(@NonNull String channel, @NonNull MessageHandler handler) {
+        listFor(channelHandlers, channel).add(handler);
+    }
+
+    /**
+     * Subscribes to players changing to or from a backend server. The handler is called asynchronously.
+     *
+     * @param server  the name of the server
+     * @param handler the handler
+     */
+    public final void subscribeServer(@NonNull String server, @NonNull Handler<PlayerChangedServerNetworkEvent> handler) {
+        listFor(serverHandlers, server).add(handler);
+    }
+
+    /**
+     * Removes a handler from everything it was subscribed to.
+     *
+     * @param handler the handler
+     */
+    public final void unsubscribe(@NonNull Object handler) {
+        for (List<Handler<?>> handlers : typeHandlers.values())
+            handlers.remove(handler);
+        for (List<MessageHandler> handlers : channelHandlers.values())
+            handlers.remove(handler);
+        for (List<Handler<PlayerChangedServerNetworkEvent>> handlers : serverHandlers.values())
+            handlers.remove(handler);
+    }
+
+    /**
+     * Sets whether events of a type are posted to BungeeCord's event bus. They are by default. This applies to every
+     * plugin, so only turn it off if nothing on the network listens for the type on the bus anymore.
+     *
+     * @param type   the event type
+     * @param posted whether to post the events to the bus
+     */
+    public final void setPostedToEventBus(@NonNull Class<? extends Event> type, boolean posted) {
+        if (posted)
+            keptOffBus.remove(type);
+        else
+            keptOffBus.add(type);
+    }
+
+    /**
+     * @param type the event type
+     * @return whether events of the type are posted to BungeeCord's event bus
+     */
+    public final boolean isPostedToEventBus(@NonNull Class<? extends Event> type) {
+        return !keptOffBus.contains(type);
+    }
+
+    private static <K, V> List<V> listFor(ConcurrentMap<K, List<V>> map, K key) {
+        List<V> list = map.get(key);
+        if (list == null) {
+            List<V> created = new CopyOnWriteArrayList<>();
+            list = map.putIfAbsent(key, created);
+            if (list == null)
+                list = created;
+        }
+        return list;
+    }
+
+    private static boolean isEmpty(List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    /**
+     * Routes an internal channel to a handler that is called directly on the PubSub thread, so it must not block.
+     */
+    void route(String channel, MessageHandler handler) {
+        routes.put(channel, handler);
+    }
+
+    /**
+     * Checks whether anything will receive an event of this type.
+     */
+    boolean isInterested(Class<? extends Event> type) {
+        return !isEmpty(typeHandlers.get(type)) || isPostedToEventBus(type);
+    }
+
+    /**
+     * Checks whether anything will receive a server change between these servers.
+     */
+    boolean isInterested(String previousServer, String server) {
+        return isInterested(PlayerChangedServerNetworkEvent.class) ||
+                (previousServer != null && !isEmpty(serverHandlers.get(previousServer))) ||
+                (server != null && !isEmpty(serverHandlers.get(server)));
+    }
+
+    /**
+     * Hands an event to its subscribers and to BungeeCord's event bus asynchronously.
+     */
+    void post(final Event event) {
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            @Override
+            public void run() {
+                deliver(event);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(Event event) {
+        for (Handler<?> handler : listOrEmpty(typeHandlers.get(event.getClass()))) {
+            try {
+                ((Handler<Event>) handler).handle(event);
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Unable to handle " + event, e);
+            }
+        }
+        if (event instanceof PlayerChangedServerNetworkEvent) {
+            PlayerChangedServerNetworkEvent change = (PlayerChangedServerNetworkEvent) event;
+            deliverToServer(change.getPreviousServer(), change);
+            if (change.getServer() != null && !change.getServer().equals(change.getPreviousServer()))
+                deliverToServer(change.getServer(), change);
+        }
+        if (isPostedToEventBus(event.getClass()))
+            plugin.getProxy().getPluginManager().callEvent(event);
+    }
+
+    private void deliverToServer(String server, PlayerChangedServerNetworkEvent event) {
+        if (server == null)
+            return;
+        for (Handler<PlayerChangedServerNetworkEvent> handler : listOrEmpty(serverHandlers.get(server))) {
+            try {
+                handler.handle(event);
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Unable to handle " + event, e);
+            }
+        }
+    }
+
+    private static <V> List<V> listOrEmpty(List<V> list) {
+        return list == null ? Collections.<V>emptyList() : list;
+    }
+
+    /**
+     * Dispatches a message received from PubSub. Internal routes run right away, everything else is handed off in a
+     * single asynchronous task, and only if something is subscribed.
+     */
+    void dispatch(final String channel, final String message) {
+        MessageHandler route = routes.get(channel);
+        if (route != null) {
+            try {
+                route.onMessage(channel, message);
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Unable to handle message on " + channel + ": " + message, e);
+            }
+        }
+
+        final List<MessageHandler> handlers = channelHandlers.get(channel);
+        final boolean wantsEvent = isInterested(PubSubMessageEvent.class);
+        if (isEmpty(handlers) && !wantsEvent)
+            return;
+
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            @Override
+            public void run() {
+                for (MessageHandler handler : listOrEmpty(handlers)) {
+                    try {
+                        handler.onMessage(channel, message);
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.SEVERE, "Unable to handle message on " + channel + ": " + message, e);
+                    }
+                }
+                if (wantsEvent)
+                    deliver(new PubSubMessageEvent(channel, message));
+            }
+        });
+    }
+
+    /**
+     * Receives network events of one type.
+     *
+     * @param <E> the event type
+     */
+    public interface Handler<E> {
+        void handle(E event);
+    }
+
+    /**
+     * Receives the messages sent on a PubSub channel.
+     */
+    public interface MessageHandler {
+        void onMessage(String channel, String message);
+    }
+}
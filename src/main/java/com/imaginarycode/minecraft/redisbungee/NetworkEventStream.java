@@ -0,0 +1,158 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.MultiKeyPipelineBase;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * This class carries the network events that {@link DataManager} consumes (joins, leaves and server changes).
+ * <p>
+ * By default these events are sent over the {@code redisbungee-data} PubSub channel. If Redis Streams are enabled,
+ * they are appended to a stream trimmed to a maximum length instead, and every proxy reads the stream in batches
+ * starting at the last entry it processed. Events published while a proxy was unable to reach Redis are then
+ * caught up on once the connection returns, rather than lost. A proxy that fell so far behind that the events it
+ * had not read yet were trimmed reloads its player index instead.
+ *
+ * @since 0.5
+ */
+class NetworkEventStream implements Runnable {
+    static final String DATA_CHANNEL = "redisbungee-data";
+    private static final String STREAM_KEY = "network-events";
+
+    private final RedisBungee plugin;
+    private final boolean enabled;
+    private final String maxLength;
+    private final int batchSize;
+    private LuaManager.Script readScript;
+    private volatile String lastId;
+    private boolean failing = false;
+
+    NetworkEventStream(RedisBungee plugin, boolean enabled, int maxLength, int batchSize) {
+        this.plugin = plugin;
+        this.enabled = enabled;
+        this.maxLength = String.valueOf(maxLength);
+        this.batchSize = batchSize;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts reading the stream from its current end.
+     */
+    void start(LuaManager manager) {
+        readScript = manager.getScript("stream_read");
+        List<?> result = (List<?>) readScript.eval(ImmutableList.of(STREAM_KEY), ImmutableList.of("$", String.valueOf(batchSize)));
+        lastId = (String) result.get(0);
+    }
+
+    private List<String> appendKeys() {
+        return ImmutableList.of(STREAM_KEY, InstanceLease.tokenKey(RedisBungee.getConfiguration().getServerId()));
+    }
+
+    private List<String> appendArgs(String message) {
+        // Events from an instance that lost the lease on our proxy ID are dropped by the script.
+        return ImmutableList.of(maxLength, message, plugin.getLease().getToken());
+    }
+
+    private List<byte[]> scriptKeys(List<byte[]> keys) {
+        return ImmutableList.<byte[]>builder()
+                .add(SafeEncoder.encode(InstanceLease.tokenKey(RedisBungee.getConfiguration().getServerId())))
+                .add(SafeEncoder.encode(STREAM_KEY))
+                .addAll(keys)
+                .build();
+    }
+
+    private List<byte[]> scriptArgs(List<byte[]> args, String message) {
+        return ImmutableList.<byte[]>builder()
+                .add(SafeEncoder.encode(plugin.getLease().getToken()))
+                .add(SafeEncoder.encode(message))
+                .add(SafeEncoder.encode(enabled ? maxLength : ""))
+                .add(SafeEncoder.encode(DATA_CHANNEL))
+                .addAll(args)
+                .build();
+    }
+
+    /**
+     * Calls a script that changes the state of one of our players and publishes an event about it in one atomic
+     * step. The script is given the fencing token of our proxy ID, the stream and the event first, followed by its
+     * own keys and arguments; see {@code player_leave.lua} for the layout. Scripts return false without writing
+     * anything if this instance lost the lease on our proxy ID.
+     */
+    Response<Object> publishWith(String script, MultiKeyPipelineBase pipeline, List<byte[]> keys, List<byte[]> args, String message) {
+        return plugin.getLuaManager().getScript(script).evalBinary(pipeline, scriptKeys(keys), scriptArgs(args, message));
+    }
+
+    Object publishWith(String script, Jedis jedis, List<byte[]> keys, List<byte[]> args, String message) {
+        return plugin.getLuaManager().getScript(script).evalBinary(jedis, scriptKeys(keys), scriptArgs(args, message));
+    }
+
+    void publish(Pipeline pipeline, String message) {
+        if (enabled) {
+            plugin.getLuaManager().getScript("stream_append").eval(pipeline, appendKeys(), appendArgs(message));
+        } else {
+            pipeline.publish(DATA_CHANNEL, message);
+        }
+    }
+
+    void publish(Jedis jedis, String message) {
+        if (enabled) {
+            plugin.getLuaManager().getScript("stream_append").eval(jedis, appendKeys(), appendArgs(message));
+        } else {
+            jedis.publish(DATA_CHANNEL, message);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<?> batch;
+            do {
+                batch = (List<?>) readScript.eval(ImmutableList.of(STREAM_KEY), ImmutableList.of(lastId, String.valueOf(batchSize)));
+                if ("1".equals(batch.get(0))) {
+                    plugin.getLogger().warning("The network event stream was trimmed past " + lastId + ", events may have been lost.");
+                    plugin.resyncPlayerIndex("the network event stream was trimmed past the last event read");
+                    if (batch.size() == 1) {
+                        // The stream is gone altogether, start over with the next entry added.
+                        lastId = "0-0";
+                    }
+                }
+                for (int i = 1; i < batch.size(); i += 2) {
+                    try {
+                        plugin.getDataManager().handle((String) batch.get(i + 1));
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.SEVERE, "Unable to handle network event " + batch.get(i), e);
+                    }
+                    lastId = (String) batch.get(i);
+                }
+                // A full batch means we are still catching up.
+            } while ((batch.size() - 1) / 2 >= batchSize);
+
+            if (failing) {
+                plugin.getLogger().info("Reconnected to the network event stream, resumed after " + lastId + ".");
+                failing = false;
+            }
+        } catch (JedisConnectionException e) {
+            failed("Unable to read the network event stream - did your Redis server go away?", e);
+        } catch (Throwable e) {
+            // Anything thrown from here would stop the reader for good.
+            failed("Unable to read the network event stream", e);
+        }
+    }
+
+    private void failed(String message, Throwable cause) {
+        if (!failing) {
+            plugin.getLogger().log(Level.SEVERE, message, cause);
+            failing = true;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDTranslator;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class holds a local view of every player online on the network, along with the proxy and server they are on.
+ * <p>
+ * The view is filled from a bulk snapshot of Redis when the plugin starts. Network events that arrive while the
+ * snapshot is being loaded are buffered and applied once it completes, after which the view is kept current from
+ * network events. Events can be lost (while PubSub reconnects, or while Redis is unreachable), so the plugin loads
+ * a new snapshot whenever that may have happened, and every so often regardless.
+ * <p>
+ * Players are also indexed by the server they are on, sorted by name, so that a page of the players on one server can
+ * be listed without going through the whole network or sorting anything, and by their lowercase name, so that names
+ * can be searched by prefix.
+ * <p>
+ * Every join and leave bumps the version of the set of online players and is kept in a bounded log, so that callers
+ * can catch up on the changes since a version they saw instead of copying the whole set. An immutable copy of the set
+ * is only made once per version.
+ *
+ * @since 0.5
+ */
+class NetworkPlayerIndex {
+    private static final int SCAN_BATCH_SIZE = 1000;
+    private static final int CHANGE_LOG_SIZE = 8192;
+
+    private final ConcurrentMap<UUID, Location> players = new ConcurrentHashMap<>();
+    // The players on each server, keyed by their sort key.
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, UUID>> byServer = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<String, UUID> byName = new ConcurrentSkipListMap<>();
+    private final Object lock = new Object();
+    private List<Delta> buffered = new ArrayList<>();
+    private volatile boolean warm = false;
+    // All guarded by lock. Every change after logStart is in the log.
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private long logStart = 0;
+    private volatile long version = 0;
+    private volatile Snapshot snapshot;
+
+    boolean isWarm() {
+        return warm;
+    }
+
+    Location get(UUID uuid) {
+        return players.get(uuid);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    int size() {
+        return players.size();
+    }
+
+    /**
+     * Returns an immutable copy of the players online, which is shared by all callers until the next join or leave.
+     */
+    Set<UUID> getPlayers() {
+        Snapshot current = snapshot;
+        if (current != null && current.version == version)
+            return current.players;
+        synchronized (lock) {
+            if (snapshot == null || snapshot.version != version) {
+                snapshot = new Snapshot(version, ImmutableSet.copyOf(players.keySet()));
+            }
+            return snapshot.players;
+        }
+    }
+
+    /**
+     * Returns the players who joined or left since a version of the set of online players. Players who joined and
+     * left again in the meantime are left out. If the log no longer reaches back to that version, every player online
+     * is returned as joined instead. Loading a snapshot empties the log, so callers that saw a version from before a
+     * reload always get the full set.
+     */
+    OnlinePlayerChanges changesSince(long since) {
+        synchronized (lock) {
+            if (since < logStart || since > version) {
+                return new OnlinePlayerChanges(version, true, getPlayers(), ImmutableSet.<UUID>of());
+            }
+            Set<UUID> joined = new HashSet<>();
+            Set<UUID> left = new HashSet<>();
+            Iterator<Change> it = changes.descendingIterator();
+            List<Change> recent = new ArrayList<>();
+            while (it.hasNext()) {
+                Change change = it.next();
+                if (change.version <= since)
+                    break;
+                recent.add(change);
+            }
+            for (Change change : Lists.reverse(recent)) {
+                if (change.joined) {
+                    if (!left.remove(change.uuid))
+                        joined.add(change.uuid);
+                } else {
+                    if (!joined.remove(change.uuid))
+                        left.add(change.uuid);
+                }
+            }
+            return new OnlinePlayerChanges(version, false, ImmutableSet.copyOf(joined), ImmutableSet.copyOf(left));
+        }
+    }
+
+    private void record(UUID uuid, boolean joined) {
+        // While a snapshot is being loaded, the whole set is replaced at once instead.
+        if (buffered != null)
+            return;
+        version++;
+        changes.add(new Change(version, uuid, joined));
+        if (changes.size() > CHANGE_LOG_SIZE) {
+            logStart = changes.poll().version;
+        }
+    }
+
+    Multimap<String, UUID> serversToPlayers() {
+        ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
+        for (Map.Entry<String, ConcurrentNavigableMap<String, UUID>> entry : byServer.entrySet()) {
+            builder.putAll(entry.getKey(), entry.getValue().values());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the servers that currently have players on them, in alphabetical order.
+     */
+    SortedSet<String> getServers() {
+        SortedSet<String> servers = new TreeSet<>();
+        for (Map.Entry<String, ConcurrentNavigableMap<String, UUID>> entry : byServer.entrySet()) {
+            if (!entry.getValue().isEmpty())
+                servers.add(entry.getKey());
+        }
+        return servers;
+    }
+
+    /**
+     * Returns the number of players on a server.
+     *
+     * @param proxy the proxy to count the players of, or null to count them all
+     */
+    int countOn(String server, String proxy) {
+        Map<String, UUID> players = byServer.get(server);
+        if (players == null)
+            return 0;
+        if (proxy == null)
+            return players.size();
+        int count = 0;
+        for (UUID uuid : players.values()) {
+            Location location = this.players.get(uuid);
+            if (location != null && proxy.equals(location.getProxy()))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the names of some of the players on a server, sorted by name ignoring case. Only the players returned
+     * and the ones skipped are looked at. Players whose name is unknown are listed by their UUID.
+     *
+     * @param proxy the proxy to list the players of, or null to list them all
+     * @param skip  the number of players to skip
+     * @param limit the maximum number of names to return
+     */
+    List<String> namesOn(String server, String proxy, int skip, int limit) {
+        Map<String, UUID> players = byServer.get(server);
+        if (players == null)
+            return Collections.emptyList();
+        List<String> names = new ArrayList<>(Math.min(limit, 128));
+        for (UUID uuid : players.values()) {
+            if (names.size() >= limit)
+                break;
+            Location location = this.players.get(uuid);
+            if (location == null || (proxy != null && !proxy.equals(location.getProxy())))
+                continue;
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            names.add(location.getName() != null ? location.getName() : uuid.toString());
+        }
+        return names;
+    }
+
+    /**
+     * Finds the online players whose name starts with a prefix, ignoring case.
+     *
+     * @param prefix the prefix
+     * @param limit  the maximum number of players to return
+     * @return a map of names to UUIDs, sorted by name
+     */
+    Map<String, UUID> search(String prefix, int limit) {
+        Map<String, UUID> result = new LinkedHashMap<>();
+        String lower = prefix.toLowerCase();
+        for (Map.Entry<String, UUID> entry : byName.subMap(lower, true, lower + Character.MAX_VALUE, true).entrySet()) {
+            if (result.size() >= limit)
+                break;
+            Location location = players.get(entry.getValue());
+            if (location != null && location.getName() != null)
+                result.put(location.getName(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Finds the online player with this name, ignoring case.
+     */
+    UUID getUuid(String name) {
+        return byName.get(name.toLowerCase());
+    }
+
+    private static String sortKey(UUID uuid, Location location) {
+        // The UUID keeps players that share a name apart.
+        String name = location.getName() != null ? location.getName() : uuid.toString();
+        return name.toLowerCase() + '\u0000' + uuid;
+    }
+
+    private void put(UUID uuid, Location location) {
+        Location previous = players.put(uuid, location);
+        String key = sortKey(uuid, location);
+        if (previous == null) {
+            record(uuid, true);
+        } else {
+            if (previous.getServer() != null) {
+                String previousKey = sortKey(uuid, previous);
+                if (!previous.getServer().equals(location.getServer()) || !previousKey.equals(key))
+                    playersOn(previous.getServer()).remove(previousKey, uuid);
+            }
+            if (previous.getName() != null && !previous.getName().equals(location.getName()))
+                byName.remove(previous.getName().toLowerCase(), uuid);
+        }
+        if (location.getServer() != null)
+            playersOn(location.getServer()).put(key, uuid);
+        if (location.getName() != null)
+            byName.put(location.getName().toLowerCase(), uuid);
+    }
+
+    private void remove(UUID uuid) {
+        Location previous = players.remove(uuid);
+        if (previous != null) {
+            record(uuid, false);
+            if (previous.getServer() != null)
+                playersOn(previous.getServer()).remove(sortKey(uuid, previous), uuid);
+            if (previous.getName() != null)
+                byName.remove(previous.getName().toLowerCase(), uuid);
+        }
+    }
+
+    private ConcurrentNavigableMap<String, UUID> playersOn(String server) {
+        ConcurrentNavigableMap<String, UUID> map = byServer.get(server);
+        if (map == null) {
+            ConcurrentNavigableMap<String, UUID> created = new ConcurrentSkipListMap<>();
+            map = byServer.putIfAbsent(server, created);
+            if (map == null)
+                map = created;
+        }
+        return map;
+    }
+
+    void join(UUID uuid, String proxy, String name) {
+        apply(new Delta(Delta.Type.JOIN, uuid, proxy, name));
+    }
+
+    void leave(UUID uuid) {
+        apply(new Delta(Delta.Type.LEAVE, uuid, null, null));
+    }
+
+    void serverChange(UUID uuid, String server) {
+        apply(new Delta(Delta.Type.SERVER_CHANGE, uuid, server, null));
+    }
+
+    private void apply(Delta delta) {
+        // Updates take the lock so that the player map and the server index change together.
+        synchronized (lock) {
+            if (buffered != null) {
+                buffered.add(delta);
+                return;
+            }
+            delta.applyTo(this);
+        }
+    }
+
+    /**
+     * Starts buffering network events, so that a new snapshot can be loaded. The view is no longer warm until the
+     * snapshot is loaded.
+     */
+    void beginLoading() {
+        synchronized (lock) {
+            if (buffered == null) {
+                buffered = new ArrayList<>();
+            }
+            warm = false;
+        }
+    }
+
+    /**
+     * Loads all players online on the given proxies, then applies the events that arrived in the meantime. Names that
+     * were not stored with the player (by older versions) are looked up with the translator.
+     */
+    void loadSnapshot(Jedis jedis, Collection<String> proxies, UUIDTranslator translator, Logger logger) {
+        beginLoading();
+        long start = System.nanoTime();
+        long scanTime = 0, fetchTime = 0;
+        ConcurrentMap<UUID, Location> snapshot = new ConcurrentHashMap<>();
+
+        try {
+            ScanParams params = new ScanParams().count(SCAN_BATCH_SIZE);
+            for (String proxy : proxies) {
+                byte[] setKey = PlayerKeys.usersOnline(proxy);
+                byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+                do {
+                    long scanStart = System.nanoTime();
+                    ScanResult<byte[]> result = jedis.sscan(setKey, cursor, params);
+                    cursor = result.getCursorAsBytes();
+                    long fetchStart = System.nanoTime();
+                    scanTime += fetchStart - scanStart;
+
+                    List<UUID> members = new ArrayList<>(result.getResult().size());
+                    for (byte[] member : result.getResult()) {
+                        try {
+                            members.add(PlayerKeys.fromMember(member));
+                        } catch (IllegalArgumentException ignored) {
+                        }
+                    }
+                    List<Response<List<byte[]>>> fields = new ArrayList<>(members.size());
+                    Pipeline pipeline = jedis.pipelined();
+                    for (UUID member : members) {
+                        fields.add(pipeline.hmget(PlayerKeys.player(member), PlayerKeys.SERVER, PlayerKeys.NAME));
+                    }
+                    pipeline.sync();
+                    fetchTime += System.nanoTime() - fetchStart;
+
+                    for (int i = 0; i < members.size(); i++) {
+                        List<byte[]> values = fields.get(i).get();
+                        snapshot.put(members.get(i), new Location(proxy, decode(values.get(0)), decode(values.get(1))));
+                    }
+                } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+            }
+
+            List<UUID> unnamed = new ArrayList<>();
+            for (Map.Entry<UUID, Location> entry : snapshot.entrySet()) {
+                if (entry.getValue().getName() == null)
+                    unnamed.add(entry.getKey());
+            }
+            if (!unnamed.isEmpty()) {
+                for (Map.Entry<UUID, String> entry : translator.getNamesFromUuids(unnamed).entrySet()) {
+                    Location location = snapshot.get(entry.getKey());
+                    snapshot.put(entry.getKey(), new Location(location.getProxy(), location.getServer(), entry.getValue()));
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                buffered = null;
+            }
+            throw e;
+        }
+
+        long applyStart = System.nanoTime();
+        int deltas;
+        synchronized (lock) {
+            players.clear();
+            byServer.clear();
+            byName.clear();
+            for (Map.Entry<UUID, Location> entry : snapshot.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            deltas = buffered.size();
+            for (Delta delta : buffered) {
+                delta.applyTo(this);
+            }
+            buffered = null;
+            // The changes up to now are unknown, so callers catching up have to start over.
+            version++;
+            changes.clear();
+            logStart = version;
+            warm = true;
+        }
+        long end = System.nanoTime();
+
+        logger.info("Loaded " + players.size() + " online players from " + proxies.size() + " proxies in " + millis(end - start) + "ms (" +
+                "scan: " + millis(scanTime) + "ms, fetch: " + millis(fetchTime) + "ms, " +
+                deltas + " buffered updates applied in " + millis(end - applyStart) + "ms)");
+    }
+
+    private static String decode(byte[] value) {
+        return value == null ? null : SafeEncoder.encode(value);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @RequiredArgsConstructor
+    private static class Snapshot {
+        private final long version;
+        private final Set<UUID> players;
+    }
+
+    @RequiredArgsConstructor
+    private static class Change {
+        private final long version;
+        private final UUID uuid;
+        private final boolean joined;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    static class Location {
+        private final String proxy;
+        private final String server;
+        private final String name;
+    }
+
+    @RequiredArgsConstructor
+    private static class Delta {
+        private final Type type;
+        private final UUID uuid;
+        private final String value;
+        private final String name;
+
+        void applyTo(NetworkPlayerIndex index) {
+            switch (type) {
+                case JOIN:
+                    index.put(uuid, new Location(value, null, name));
+                    break;
+                case LEAVE:
+                    index.remove(uuid);
+                    break;
+                case SERVER_CHANGE:
+                    Location location = index.players.get(uuid);
+                    if (location != null)
+                        index.put(uuid, new Location(location.getProxy(), value, location.getName()));
+                    break;
+            }
+        }
+
+        enum Type {
+            JOIN,
+            LEAVE,
+            SERVER_CHANGE
+        }
+    }
+}
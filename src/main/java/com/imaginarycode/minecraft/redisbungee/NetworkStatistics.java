@@ -0,0 +1,194 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * This class records rollups of the network's player counts in Redis.
+ * <p>
+ * Every day has a {@code stats:peaks:<day>} hash holding the peak player count of each minute, both for the whole
+ * network and for each proxy. Only one proxy at a time, the holder of the {@code stats-leader} lease, samples the
+ * counts and writes the peaks. Every proxy adds the players that log in to a {@code stats:uniques:<day>}
+ * HyperLogLog, which counts the unique players of the day in a few kilobytes. Days are in UTC and expire after the
+ * configured number of days.
+ *
+ * @since 0.5
+ */
+class NetworkStatistics implements Runnable {
+    static final int SAMPLE_SECONDS = 15;
+    private static final String LEASE_KEY = "stats-leader";
+    private static final String PEAKS_PREFIX = "stats:peaks:";
+    private static final String UNIQUES_PREFIX = "stats:uniques:";
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final RedisBungee plugin;
+    private final int retentionDays;
+    private final LuaManager.Script leaseScript;
+    private final LuaManager.Script peaksScript;
+    private boolean leader = false;
+
+    NetworkStatistics(RedisBungee plugin, LuaManager manager, int retentionDays) {
+        this.plugin = plugin;
+        this.retentionDays = retentionDays;
+        this.leaseScript = manager.getScript("acquire_lease");
+        this.peaksScript = manager.getScript("record_peaks");
+    }
+
+    boolean isEnabled() {
+        return retentionDays > 0;
+    }
+
+    private static long day(long timestamp) {
+        return timestamp / DAY;
+    }
+
+    private static int ttl(int retentionDays) {
+        // Keep one extra day, so that the oldest day is still complete.
+        return (int) TimeUnit.DAYS.toSeconds(retentionDays + 1);
+    }
+
+    /**
+     * Counts a player towards today's unique players.
+     */
+    static void recordLogin(Pipeline pipeline, UUID uuid) {
+        int retentionDays = RedisBungee.getConfiguration().getStatisticsRetentionDays();
+        if (retentionDays > 0) {
+            String key = UNIQUES_PREFIX + day(System.currentTimeMillis());
+            pipeline.pfadd(key, uuid.toString());
+            pipeline.expire(key, ttl(retentionDays));
+        }
+    }
+
+    @Override
+    public void run() {
+        String serverId = RedisBungee.getConfiguration().getServerId();
+        try {
+            long lease = TimeUnit.SECONDS.toMillis(SAMPLE_SECONDS * 3);
+            boolean acquired = (Long) leaseScript.eval(ImmutableList.of(LEASE_KEY), ImmutableList.of(serverId, String.valueOf(lease))) == 1;
+            if (acquired != leader) {
+                leader = acquired;
+                if (leader)
+                    plugin.getLogger().info("This proxy is now recording network statistics.");
+            }
+            if (!leader)
+                return;
+
+            List<String> proxies = plugin.getServerIds();
+            List<Response<Long>> counts = new ArrayList<>(proxies.size());
+            try (Jedis jedis = plugin.getBulkPool().getResource()) {
+                Pipeline pipeline = jedis.pipelined();
+                for (String proxy : proxies) {
+                    counts.add(pipeline.scard(PlayerKeys.usersOnline(proxy)));
+                }
+                pipeline.sync();
+            }
+
+            long now = System.currentTimeMillis();
+            String minute = String.valueOf((now % DAY) / MINUTE);
+            long total = 0;
+            List<String> args = new ArrayList<>(3 + proxies.size() * 2);
+            args.add(String.valueOf(ttl(retentionDays)));
+            for (int i = 0; i < proxies.size(); i++) {
+                long count = counts.get(i).get();
+                total += count;
+                args.add(proxies.get(i) + ":" + minute);
+                args.add(String.valueOf(count));
+            }
+            args.add(minute);
+            args.add(String.valueOf(total));
+            peaksScript.eval(ImmutableList.of(PEAKS_PREFIX + day(now)), args);
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to record network statistics - did your Redis server go away?", e);
+        } catch (RuntimeException e) {
+            // Anything thrown from here would stop the sampling for good.
+            plugin.getLogger().log(Level.SEVERE, "Unable to record network statistics", e);
+        }
+    }
+
+    /**
+     * Returns the peak of each minute in a time range, for the network or for one proxy.
+     *
+     * @param proxy the proxy, or null for the whole network
+     */
+    SortedMap<Long, Integer> getPeaks(String proxy, long from, long to) {
+        long firstDay = Math.max(day(from), day(System.currentTimeMillis()) - retentionDays);
+        long lastDay = day(to);
+        SortedMap<Long, Integer> peaks = new TreeMap<>();
+        if (firstDay > lastDay)
+            return ImmutableSortedMap.copyOf(peaks);
+
+        List<Response<Map<String, String>>> days = new ArrayList<>();
+        try (Jedis jedis = plugin.getBulkPool().getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (long day = firstDay; day <= lastDay; day++) {
+                days.add(pipeline.hgetAll(PEAKS_PREFIX + day));
+            }
+            pipeline.sync();
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to get network statistics", e);
+            throw new RuntimeException("Unable to get network statistics", e);
+        }
+
+        String prefix = proxy == null ? null : proxy + ":";
+        for (int i = 0; i < days.size(); i++) {
+            long dayStart = (firstDay + i) * DAY;
+            for (Map.Entry<String, String> entry : days.get(i).get().entrySet()) {
+                String field = entry.getKey();
+                String minute;
+                if (prefix == null) {
+                    if (field.indexOf(':') != -1)
+                        continue;
+                    minute = field;
+                } else {
+                    if (!field.startsWith(prefix))
+                        continue;
+                    minute = field.substring(prefix.length());
+                }
+                try {
+                    long time = dayStart + Long.parseLong(minute) * MINUTE;
+                    if (time >= from && time <= to)
+                        peaks.put(time, Integer.parseInt(entry.getValue()));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return ImmutableSortedMap.copyOf(peaks);
+    }
+
+    /**
+     * Estimates the number of unique players on the days (in UTC) that overlap a time range.
+     */
+    long getUniquePlayers(long from, long to) {
+        long firstDay = Math.max(day(from), day(System.currentTimeMillis()) - retentionDays);
+        long lastDay = day(to);
+        if (firstDay > lastDay)
+            return 0;
+
+        List<String> keys = new ArrayList<>();
+        for (long day = firstDay; day <= lastDay; day++) {
+            keys.add(UNIQUES_PREFIX + day);
+        }
+        try (Jedis jedis = plugin.getBulkPool().getResource()) {
+            return jedis.pfcount(keys.toArray(new String[keys.size()]));
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to get network statistics", e);
+            throw new RuntimeException("Unable to get network statistics", e);
+        }
+    }
+}
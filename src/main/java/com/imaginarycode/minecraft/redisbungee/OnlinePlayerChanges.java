@@ -0,0 +1,38 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * This class holds the players who joined or left the network since an earlier version of the set of online players.
+ *
+ * @see RedisBungeeAPI#getOnlinePlayerChangesSince(long)
+ * @since 0.5
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class OnlinePlayerChanges {
+    /**
+     * The version of the set of online players these changes lead up to. Pass it to the next call.
+     */
+    private final long version;
+    /**
+     * Whether the changes since the requested version are no longer known. If so, {@link #getJoined()} holds every
+     * player online and the set built so far should be replaced with it.
+     */
+    private final boolean full;
+    /**
+     * The players who are online now, but were not at the requested version.
+     */
+    private final Set<UUID> joined;
+    /**
+     * The players who were online at the requested version, but are not now.
+     */
+    private final Set<UUID> left;
+}
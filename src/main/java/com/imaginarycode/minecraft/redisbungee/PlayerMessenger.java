@@ -0,0 +1,130 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.gson.TypeAdapter;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.chat.ComponentSerializer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * This class sends chat messages, kicks and server connections to players wherever they are on the network.
+ * <p>
+ * The proxy each player is on is looked up through {@link DataManager}, and the action is published once per proxy,
+ * on that proxy's {@code redisbungee:players:<id>} channel only. Players on this proxy are handled right away.
+ *
+ * @since 0.5
+ */
+class PlayerMessenger implements NetworkEventRegistry.MessageHandler {
+    private static final String CHANNEL_PREFIX = "redisbungee:players:";
+    private static final TypeAdapter<PlayerAction> ADAPTER = RedisBungee.getGson().getAdapter(PlayerAction.class);
+
+    private final RedisBungee plugin;
+
+    PlayerMessenger(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    static String channel(String proxyId) {
+        return CHANNEL_PREFIX + proxyId;
+    }
+
+    void sendMessage(Collection<UUID> players, BaseComponent... message) {
+        send(players, PlayerAction.Type.MESSAGE, ComponentSerializer.toString(message));
+    }
+
+    void kick(Collection<UUID> players, BaseComponent... reason) {
+        send(players, PlayerAction.Type.KICK, ComponentSerializer.toString(reason));
+    }
+
+    void connect(Collection<UUID> players, String server) {
+        send(players, PlayerAction.Type.CONNECT, server);
+    }
+
+    private void send(Collection<UUID> players, PlayerAction.Type type, String argument) {
+        String serverId = RedisBungee.getConfiguration().getServerId();
+        ListMultimap<String, UUID> byProxy = ArrayListMultimap.create();
+        for (Map.Entry<UUID, String> entry : plugin.getDataManager().getProxies(players).entrySet()) {
+            byProxy.put(entry.getValue(), entry.getKey());
+        }
+
+        List<UUID> local = byProxy.removeAll(serverId);
+        if (!local.isEmpty()) {
+            apply(new PlayerAction(type, local, argument));
+        }
+        if (byProxy.isEmpty())
+            return;
+
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, Collection<UUID>> entry : byProxy.asMap().entrySet()) {
+                PlayerAction action = new PlayerAction(type, ImmutableList.copyOf(entry.getValue()), argument);
+                pipeline.publish(channel(entry.getKey()), ADAPTER.toJson(action));
+            }
+            pipeline.sync();
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            throw new RuntimeException("Unable to send player action", e);
+        }
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        try {
+            apply(ADAPTER.fromJson(message));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to decode player action " + message, e);
+        }
+    }
+
+    private void apply(PlayerAction action) {
+        BaseComponent[] components = action.getType() == PlayerAction.Type.CONNECT ? null : ComponentSerializer.parse(action.getArgument());
+        ServerInfo server = action.getType() == PlayerAction.Type.CONNECT ? plugin.getProxy().getServerInfo(action.getArgument()) : null;
+
+        for (UUID uuid : action.getTargets()) {
+            ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
+            if (player == null)
+                continue;
+            switch (action.getType()) {
+                case MESSAGE:
+                    player.sendMessage(components);
+                    break;
+                case KICK:
+                    player.disconnect(components);
+                    break;
+                case CONNECT:
+                    if (server != null)
+                        player.connect(server);
+                    break;
+            }
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    static class PlayerAction {
+        private final Type type;
+        private final List<UUID> targets;
+        private final String argument;
+
+        enum Type {
+            MESSAGE,
+            KICK,
+            CONNECT
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * This class holds the result of running an acknowledged proxy command on one proxy.
+ *
+ * @see RedisBungeeAPI#sendAcknowledgedProxyCommand(String, long, java.util.concurrent.TimeUnit)
+ * @since 0.5
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class ProxyCommandResult {
+    static final String RPC_METHOD = "redisbungee:command";
+
+    /**
+     * The proxy that ran the command.
+     */
+    private final String proxyId;
+    /**
+     * Whether a command with this name existed and was run.
+     */
+    private final boolean dispatched;
+    /**
+     * The messages the command sent while it was running.
+     */
+    private final List<String> output;
+    /**
+     * How long the command took to run on the proxy, in milliseconds.
+     */
+    private final long durationMillis;
+}
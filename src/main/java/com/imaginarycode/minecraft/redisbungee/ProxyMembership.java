@@ -0,0 +1,129 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableSet;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * This class keeps track of the proxies that are part of the network.
+ * <p>
+ * Proxies announce themselves on the {@code redisbungee-proxies} channel when they start and stop, and keep a
+ * {@code heartbeat:<id>} key with a TTL alive. If keyspace notifications are enabled, the expiry of that key removes
+ * a crashed proxy right away. A full poll of the {@code heartbeats} hash is kept as a slow safety net.
+ *
+ * @since 0.5
+ */
+class ProxyMembership implements NetworkEventRegistry.MessageHandler {
+    static final String CHANNEL = "redisbungee-proxies";
+    static final String EXPIRED_CHANNEL = "__keyevent@0__:expired";
+    static final int HEARTBEAT_TTL = 30;
+    private static final String HEARTBEAT_KEY_PREFIX = "heartbeat:";
+
+    private final RedisBungee plugin;
+    private final String serverId;
+    private volatile ImmutableSet<String> members;
+
+    ProxyMembership(RedisBungee plugin, String serverId, Collection<String> initial) {
+        this.plugin = plugin;
+        this.serverId = serverId;
+        this.members = ImmutableSet.<String>builder().add(serverId).addAll(initial).build();
+    }
+
+    static String heartbeatKey(String proxyId) {
+        return HEARTBEAT_KEY_PREFIX + proxyId;
+    }
+
+    List<String> getMembers() {
+        return members.asList();
+    }
+
+    boolean contains(String proxyId) {
+        return members.contains(proxyId);
+    }
+
+    void writeHeartbeat(Pipeline pipeline, long redisTime) {
+        String stamp = String.valueOf(redisTime);
+        // The hash is still read by the bundled Lua scripts and by older RedisBungee versions.
+        pipeline.hset("heartbeats", serverId, stamp);
+        pipeline.setex(heartbeatKey(serverId), HEARTBEAT_TTL, stamp);
+    }
+
+    void announceJoin(Jedis jedis) {
+        jedis.publish(CHANNEL, "JOIN " + serverId);
+    }
+
+    void announceLeave(Jedis jedis) {
+        jedis.del(heartbeatKey(serverId));
+        jedis.hdel("heartbeats", serverId);
+        jedis.publish(CHANNEL, "LEAVE " + serverId);
+    }
+
+    /**
+     * Replaces the membership with the result of a full poll. The set is only rebuilt if it actually changed.
+     */
+    synchronized void replace(Collection<String> polled) {
+        ImmutableSet<String> updated = ImmutableSet.<String>builder().add(serverId).addAll(polled).build();
+        if (!updated.equals(members)) {
+            members = updated;
+        }
+    }
+
+    private synchronized void add(String proxyId) {
+        if (!members.contains(proxyId)) {
+            members = ImmutableSet.<String>builder().addAll(members).add(proxyId).build();
+        }
+    }
+
+    private synchronized void remove(String proxyId) {
+        if (!proxyId.equals(serverId) && members.contains(proxyId)) {
+            ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+            for (String member : members) {
+                if (!member.equals(proxyId))
+                    builder.add(member);
+            }
+            members = builder.build();
+        }
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        if (channel.equals(CHANNEL)) {
+            int space = message.indexOf(' ');
+            if (space == -1)
+                return;
+            String proxyId = message.substring(space + 1);
+            switch (message.substring(0, space)) {
+                case "JOIN":
+                    add(proxyId);
+                    break;
+                case "LEAVE":
+                    remove(proxyId);
+                    break;
+            }
+        } else if (channel.equals(EXPIRED_CHANNEL)) {
+            if (message.startsWith(HEARTBEAT_KEY_PREFIX)) {
+                String proxyId = message.substring(HEARTBEAT_KEY_PREFIX.length());
+                if (proxyId.equals(serverId)) {
+                    // We missed our own heartbeat. Put the key back instead of dropping ourselves.
+                    plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            try (Jedis jedis = plugin.getPool().getResource()) {
+                                jedis.setex(heartbeatKey(serverId), HEARTBEAT_TTL, jedis.time().get(0));
+                            } catch (JedisConnectionException e) {
+                                plugin.getLogger().log(Level.SEVERE, "Unable to restore heartbeat", e);
+                            }
+                        }
+                    });
+                    return;
+                }
+                remove(proxyId);
+            }
+        }
+    }
+}
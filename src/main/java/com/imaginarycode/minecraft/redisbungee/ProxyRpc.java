@@ -0,0 +1,337 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.TypeAdapter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * This class lets proxies call each other and wait for the answer.
+ * <p>
+ * Handlers are registered under a method name and receive a request object that was serialized with Gson. A call
+ * is published on the {@code redisbungee:rpc:<id>} channel of the proxy being called, along with a correlation ID,
+ * and the answer is published back on the caller's channel. Every call has a deadline, after which its future fails
+ * with a {@link TimeoutException}. Handlers run asynchronously, so they may block.
+ *
+ * @since 0.5
+ */
+public class ProxyRpc implements NetworkEventRegistry.MessageHandler {
+    private static final String CHANNEL_PREFIX = "redisbungee:rpc:";
+    private static final TypeAdapter<RpcMessage> ADAPTER = RedisBungee.getGson().getAdapter(RpcMessage.class);
+
+    private final RedisBungee plugin;
+    private final ScheduledExecutorService timer;
+    private final String serverId;
+    private final ConcurrentMap<String, Registration<?, ?>> handlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PendingCall> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    ProxyRpc(RedisBungee plugin, ScheduledExecutorService timer) {
+        this.plugin = plugin;
+        this.timer = timer;
+        this.serverId = RedisBungee.getConfiguration().getServerId();
+    }
+
+    static String channel(String proxyId) {
+        return CHANNEL_PREFIX + proxyId;
+    }
+
+    /**
+     * Registers the handler for a method, replacing the previous one.
+     *
+     * @param method      the method name
+     * @param requestType the type the request is deserialized to
+     * @param handler     the handler
+     */
+    public final <Q, R> void registerHandler(@NonNull String method, @NonNull Class<Q> requestType, @NonNull Handler<Q, R> handler) {
+        handlers.put(method, new Registration<>(requestType, handler));
+    }
+
+    /**
+     * Removes the handler for a method.
+     *
+     * @param method the method name
+     */
+    public final void unregisterHandler(@NonNull String method) {
+        handlers.remove(method);
+    }
+
+    /**
+     * Calls a method on one proxy.
+     *
+     * @param proxyId      the proxy to call, which may be this one
+     * @param method       the method name
+     * @param request      the request, serialized with Gson
+     * @param responseType the type the response is deserialized to
+     * @param timeout      how long to wait for the response
+     * @param unit         the unit of the timeout
+     * @return a future of the response, which fails if the handler failed, there was no handler, or the deadline
+     * passed
+     */
+    public final <R> ListenableFuture<R> call(@NonNull String proxyId, @NonNull String method, Object request,
+                                              @NonNull final Class<R> responseType, long timeout, @NonNull TimeUnit unit) {
+        calls.incrementAndGet();
+        final String id = UUID.randomUUID().toString();
+        final PendingCall call = new PendingCall(proxyId, System.nanoTime());
+        pending.put(id, call);
+
+        call.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(id) != null) {
+                    timeouts.incrementAndGet();
+                    call.future.setException(new TimeoutException("No response from " + call.proxyId + " in time"));
+                }
+            }
+        }, timeout, unit);
+
+        RpcMessage message = new RpcMessage(id, serverId, method, RedisBungee.getGson().toJson(request), false, null);
+        if (proxyId.equals(serverId)) {
+            handleRequest(message);
+        } else {
+            try {
+                if (!plugin.sendChannelMessage(channel(proxyId), ADAPTER.toJson(message)))
+                    throw new IllegalStateException("Redis is unreachable, unable to call " + proxyId);
+            } catch (RuntimeException e) {
+                if (pending.remove(id) != null) {
+                    failures.incrementAndGet();
+                    call.future.setException(e);
+                }
+            }
+        }
+
+        return Futures.transform(call.future, new Function<String, R>() {
+            @Override
+            public R apply(String body) {
+                return RedisBungee.getGson().fromJson(body, responseType);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Calls a method on every proxy, including this one.
+     *
+     * @param method       the method name
+     * @param request      the request, serialized with Gson
+     * @param responseType the type the response is deserialized to
+     * @param timeout      how long to wait for the responses
+     * @param unit         the unit of the timeout
+     * @return a future of an immutable map of every proxy called to how its call went, which completes once every
+     * proxy has answered or the deadline passed
+     */
+    public final <R> ListenableFuture<Map<String, RpcOutcome<R>>> callAll(@NonNull String method, Object request, @NonNull Class<R> responseType,
+                                                                          long timeout, @NonNull TimeUnit unit) {
+        final List<String> proxies = plugin.getServerIds();
+        List<ListenableFuture<RpcOutcome<R>>> outcomes = new ArrayList<>(proxies.size());
+        for (String proxy : proxies) {
+            final SettableFuture<RpcOutcome<R>> outcome = SettableFuture.create();
+            Futures.addCallback(call(proxy, method, request, responseType, timeout, unit), new FutureCallback<R>() {
+                @Override
+                public void onSuccess(R response) {
+                    outcome.set(new RpcOutcome<>(response, null));
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    outcome.set(new RpcOutcome<R>(null, throwable));
+                }
+            }, MoreExecutors.directExecutor());
+            outcomes.add(outcome);
+        }
+
+        return Futures.transform(Futures.allAsList(outcomes), new Function<List<RpcOutcome<R>>, Map<String, RpcOutcome<R>>>() {
+            @Override
+            public Map<String, RpcOutcome<R>> apply(List<RpcOutcome<R>> outcomes) {
+                ImmutableMap.Builder<String, RpcOutcome<R>> builder = ImmutableMap.builder();
+                for (int i = 0; i < proxies.size(); i++) {
+                    builder.put(proxies.get(i), outcomes.get(i));
+                }
+                return builder.build();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        RpcMessage decoded;
+        try {
+            decoded = ADAPTER.fromJson(message);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to decode RPC message " + message, e);
+            return;
+        }
+
+        if (decoded.response) {
+            handleResponse(decoded);
+        } else {
+            handleRequest(decoded);
+        }
+    }
+
+    private void handleResponse(RpcMessage response) {
+        PendingCall call = pending.remove(response.id);
+        if (call == null)
+            return; // Timed out already.
+        Future<?> timeout = call.timeout;
+        if (timeout != null)
+            timeout.cancel(false);
+
+        long latency = System.nanoTime() - call.startNanos;
+        totalLatencyNanos.addAndGet(latency);
+        long max;
+        do {
+            max = maxLatencyNanos.get();
+        } while (latency > max && !maxLatencyNanos.compareAndSet(max, latency));
+
+        if (response.error != null) {
+            failures.incrementAndGet();
+            call.future.setException(new IllegalStateException(call.proxyId + " failed to handle the call: " + response.error));
+        } else {
+            completed.incrementAndGet();
+            call.future.set(response.body);
+        }
+    }
+
+    private void handleRequest(final RpcMessage request) {
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            @Override
+            public void run() {
+                String body = null;
+                String error = null;
+                Registration<?, ?> registration = handlers.get(request.method);
+                if (registration == null) {
+                    error = "no handler for " + request.method;
+                } else {
+                    try {
+                        body = RedisBungee.getGson().toJson(registration.handle(request.source, request.body));
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.WARNING, "RPC handler for " + request.method + " failed", e);
+                        error = String.valueOf(e.getMessage());
+                    }
+                }
+
+                RpcMessage response = new RpcMessage(request.id, serverId, request.method, body, true, error);
+                if (request.source.equals(serverId)) {
+                    handleResponse(response);
+                    return;
+                }
+                try {
+                    plugin.sendChannelMessage(channel(request.source), ADAPTER.toJson(response));
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Unable to answer RPC call from " + request.source, e);
+                }
+            }
+        });
+    }
+
+    public final long getCallCount() {
+        return calls.get();
+    }
+
+    public final long getCompletedCount() {
+        return completed.get();
+    }
+
+    public final long getFailureCount() {
+        return failures.get();
+    }
+
+    public final long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public final int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the mean time between making a call and receiving its response, in milliseconds
+     */
+    public final double getMeanLatencyMillis() {
+        long answered = completed.get() + failures.get();
+        return answered == 0 ? 0 : totalLatencyNanos.get() / (double) answered / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the longest time between making a call and receiving its response, in milliseconds
+     */
+    public final double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Answers the calls made to a method.
+     *
+     * @param <Q> the type of the request
+     * @param <R> the type of the response
+     */
+    public interface Handler<Q, R> {
+        /**
+         * Handles a call. This is called asynchronously.
+         *
+         * @param sourceProxy the proxy that made the call
+         * @param request     the request
+         * @return the response, which is serialized with Gson
+         * @throws Exception if the call failed; the caller's future fails with the exception's message
+         */
+        R handle(String sourceProxy, Q request) throws Exception;
+    }
+
+    @RequiredArgsConstructor
+    private static class Registration<Q, R> {
+        private final Class<Q> requestType;
+        private final Handler<Q, R> handler;
+
+        R handle(String source, String body) throws Exception {
+            return handler.handle(source, RedisBungee.getGson().fromJson(body, requestType));
+        }
+    }
+
+    private static class PendingCall {
+        private final SettableFuture<String> future = SettableFuture.create();
+        private final String proxyId;
+        private final long startNanos;
+        private volatile Future<?> timeout;
+
+        PendingCall(String proxyId, long startNanos) {
+            this.proxyId = proxyId;
+            this.startNanos = startNanos;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class RpcMessage {
+        private final String id;
+        private final String source;
+        private final String method;
+        private final String body;
+        private final boolean response;
+        private final String error;
+    }
+}
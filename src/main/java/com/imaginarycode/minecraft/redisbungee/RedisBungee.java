@@ -5,7 +5,6 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.*;
 import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
-import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
 import com.imaginarycode.minecraft.redisbungee.util.*;
 import com.imaginarycode.minecraft.redisbungee.util.uuid.NameFetcher;
 import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDFetcher;
@@ -25,11 +24,13 @@ import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
 
 import java.io.*;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
@@ -46,8 +47,10 @@ public final class RedisBungee extends Plugin {
     private static RedisBungeeAPI api;
     @Getter(AccessLevel.PACKAGE)
     private static PubSubListener psl = null;
-    @Getter
-    private JedisPool pool;
+    @Getter(AccessLevel.PACKAGE)
+    private static NetworkEventStream eventStream;
+    private AdaptiveJedisPool pool;
+    private AdaptiveJedisPool bulkPool;
     @Getter
     private UUIDTranslator uuidTranslator;
     @Getter(AccessLevel.PACKAGE)
@@ -55,16 +58,47 @@ public final class RedisBungee extends Plugin {
     @Getter
     private DataManager dataManager;
     @Getter
+    private NetworkEventRegistry eventRegistry;
+    @Getter(AccessLevel.PACKAGE)
+    private PlayerMessenger messenger;
+    @Getter(AccessLevel.PACKAGE)
+    private ProxyRpc rpc;
+    @Getter(AccessLevel.PACKAGE)
+    private LoginAdmission loginAdmission;
+    @Getter(AccessLevel.PACKAGE)
+    private DegradedMode degradedMode;
+    @Getter(AccessLevel.PACKAGE)
+    private InstanceLease lease;
+    @Getter(AccessLevel.PACKAGE)
+    private LuaManager luaManager;
+    @Getter(AccessLevel.PACKAGE)
+    private ServerChangeCoalescer serverChanges;
+    @Getter
     private static OkHttpClient httpClient;
-    private volatile List<String> serverIds;
+    private ProxyMembership membership;
+    private final AtomicInteger membershipPollCountdown = new AtomicInteger();
     private final AtomicInteger nagAboutServers = new AtomicInteger();
     private final AtomicInteger globalPlayerCount = new AtomicInteger();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final AtomicBoolean dataSubscribed = new AtomicBoolean();
+    // Both guarded by this, like the integrity check.
+    private int indexMismatches = 0;
+    private int checksSinceSnapshot = 0;
+    // Set while the last integrity check found the index and Redis disagreeing.
+    private volatile boolean indexSuspect = false;
     private Future<?> integrityCheck;
     private Future<?> heartbeatTask;
+    private Future<?> eventStreamTask;
+    private Future<?> statisticsTask;
+    private Future<?> poolTask;
+    private Future<?> journalFlushTask;
+    @Getter(AccessLevel.PACKAGE)
+    private NetworkStatistics statistics;
     private boolean usingLua;
     private LuaManager.Script serverToPlayersScript;
     private LuaManager.Script getPlayerCountScript;
 
+    private static final int SNAPSHOT_INTERVAL_CHECKS = 15;
     private static final Object SERVER_TO_PLAYERS_KEY = new Object();
     private final Cache<Object, Multimap<String, UUID>> serverToPlayersCache = CacheBuilder.newBuilder()
             .expireAfterWrite(5, TimeUnit.SECONDS)
@@ -79,12 +113,40 @@ public final class RedisBungee extends Plugin {
         return api;
     }
 
+    /**
+     * Returns the pool used for the connections that players and other plugins wait on, such as logins and lookups.
+     *
+     * @return the Redis pool
+     */
+    public JedisPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the pool used for background and bulk work, such as the integrity check, statistics and UUID cache
+     * scans, so that it can't hold up the connections in {@link #getPool()}.
+     *
+     * @return the bulk Redis pool
+     * @since 0.5
+     */
+    public JedisPool getBulkPool() {
+        return bulkPool;
+    }
+
+    final List<AdaptiveJedisPool> getPools() {
+        return ImmutableList.of(pool, bulkPool);
+    }
+
     static PubSubListener getPubSubListener() {
         return psl;
     }
 
     final List<String> getServerIds() {
-        return serverIds;
+        return membership.getMembers();
+    }
+
+    final boolean isServerId(String proxyId) {
+        return membership.contains(proxyId);
     }
 
     private List<String> getCurrentServerIds(boolean nag, boolean lagged) {
@@ -113,17 +175,20 @@ public final class RedisBungee extends Plugin {
             return servers.build();
         } catch (JedisConnectionException e) {
             getLogger().log(Level.SEVERE, "Unable to fetch server IDs", e);
-            return Collections.singletonList(configuration.getServerId());
+            // Never report the proxies we know of as lagged just because Redis is unreachable.
+            if (lagged)
+                return Collections.emptyList();
+            return membership != null ? membership.getMembers() : Collections.singletonList(configuration.getServerId());
         }
     }
 
     public Set<UUID> getPlayersOnProxy(String server) {
-        checkArgument(getServerIds().contains(server), server + " is not a valid proxy ID");
+        checkArgument(isServerId(server), server + " is not a valid proxy ID");
         try (Jedis jedis = pool.getResource()) {
-            Set<String> users = jedis.smembers("proxy:" + server + ":usersOnline");
+            Set<byte[]> users = jedis.smembers(PlayerKeys.usersOnline(server));
             ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
-            for (String user : users) {
-                builder.add(UUID.fromString(user));
+            for (byte[] user : users) {
+                builder.add(PlayerKeys.fromMember(user));
             }
             return builder.build();
         }
@@ -134,17 +199,25 @@ public final class RedisBungee extends Plugin {
             return serverToPlayersCache.get(SERVER_TO_PLAYERS_KEY, new Callable<Multimap<String, UUID>>() {
                 @Override
                 public Multimap<String, UUID> call() throws Exception {
-                    Collection<String> data = (Collection<String>) serverToPlayersScript.eval(ImmutableList.<String>of(), getServerIds());
+                    if (isIndexTrusted()) {
+                        return dataManager.getPlayerIndex().serversToPlayers();
+                    }
+
+                    List<byte[]> proxies = new ArrayList<>();
+                    for (String proxy : getServerIds()) {
+                        proxies.add(SafeEncoder.encode(proxy));
+                    }
+                    Collection<byte[]> data = (Collection<byte[]>) serverToPlayersScript.evalBinary(ImmutableList.<byte[]>of(), proxies);
 
                     ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
                     String key = null;
-                    for (String s : data) {
+                    for (byte[] s : data) {
                         if (key == null) {
-                            key = s;
+                            key = SafeEncoder.encode(s);
                             continue;
                         }
 
-                        builder.put(key, UUID.fromString(s));
+                        builder.put(key, PlayerKeys.fromMember(s));
                         key = null;
                     }
 
@@ -165,28 +238,57 @@ public final class RedisBungee extends Plugin {
         return count.intValue();
     }
 
-    private Set<String> getLocalPlayersAsUuidStrings() {
-        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    private Set<UUID> getLocalPlayers() {
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
         for (ProxiedPlayer player : getProxy().getPlayers()) {
-            builder.add(player.getUniqueId().toString());
+            builder.add(player.getUniqueId());
         }
         return builder.build();
     }
 
+    private static Set<UUID> decodeMembers(Set<byte[]> members) {
+        Set<UUID> uuids = new HashSet<>(members.size());
+        for (byte[] member : members) {
+            try {
+                uuids.add(PlayerKeys.fromMember(member));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return uuids;
+    }
+
+    /**
+     * Returns whether the player index can answer for Redis: it is loaded, and the last integrity check found it
+     * agreeing with Redis.
+     */
+    private boolean isIndexTrusted() {
+        return dataManager != null && dataManager.getPlayerIndex().isWarm() && !indexSuspect;
+    }
+
+    private Set<UUID> getPlayersLocally() {
+        NetworkPlayerIndex index = dataManager.getPlayerIndex();
+        return index.isWarm() ? index.getPlayers() : getLocalPlayers();
+    }
+
     final Set<UUID> getPlayers() {
+        // The index is kept current from network events, and shares one copy of the set until it changes. While it is
+        // being reloaded or looks out of date, Redis is asked instead.
+        if (isIndexTrusted() || (degradedMode != null && degradedMode.isActive())) {
+            return getPlayersLocally();
+        }
         ImmutableSet.Builder<UUID> setBuilder = ImmutableSet.builder();
         if (pool != null) {
             try (Jedis rsc = pool.getResource()) {
-                List<String> keys = new ArrayList<>();
+                List<byte[]> keys = new ArrayList<>();
                 for (String i : getServerIds()) {
-                    keys.add("proxy:" + i + ":usersOnline");
+                    keys.add(PlayerKeys.usersOnline(i));
                 }
                 if (!keys.isEmpty()) {
-                    Set<String> users = rsc.sunion(keys.toArray(new String[keys.size()]));
+                    Set<byte[]> users = rsc.sunion(keys.toArray(new byte[keys.size()][]));
                     if (users != null && !users.isEmpty()) {
-                        for (String user : users) {
+                        for (byte[] user : users) {
                             try {
-                                setBuilder = setBuilder.add(UUID.fromString(user));
+                                setBuilder = setBuilder.add(PlayerKeys.fromMember(user));
                             } catch (IllegalArgumentException ignored) {
                             }
                         }
@@ -194,23 +296,39 @@ public final class RedisBungee extends Plugin {
                 }
             } catch (JedisConnectionException e) {
                 // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                throw new RuntimeException("Unable to get all players online", e);
+                if (!degradedMode.enter(e)) {
+                    getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+                    throw new RuntimeException("Unable to get all players online", e);
+                }
+                return getPlayersLocally();
             }
         }
         return setBuilder.build();
     }
 
     final void sendProxyCommand(@NonNull String proxyId, @NonNull String command) {
-        checkArgument(getServerIds().contains(proxyId) || proxyId.equals("allservers"), "proxyId is invalid");
+        checkArgument(isServerId(proxyId) || proxyId.equals("allservers"), "proxyId is invalid");
         sendChannelMessage("redisbungee-" + proxyId, command);
     }
 
-    final void sendChannelMessage(String channel, String message) {
+    /**
+     * Publishes a message. While Redis is unreachable, the message is dropped: nobody is subscribed to receive it,
+     * and it would be stale by the time Redis comes back.
+     *
+     * @return whether the message was published
+     */
+    final boolean sendChannelMessage(String channel, String message) {
+        if (degradedMode.isActive()) {
+            getLogger().fine("Dropped a message on " + channel + " while Redis is unreachable");
+            return false;
+        }
         try (Jedis jedis = pool.getResource()) {
             jedis.publish(channel, message);
+            return true;
         } catch (JedisConnectionException e) {
             // Redis server has disappeared!
+            if (degradedMode.enter(e))
+                return false;
             getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
             throw new RuntimeException("Unable to publish channel message", e);
         }
@@ -232,61 +350,98 @@ public final class RedisBungee extends Plugin {
         } catch (Exception e) {
             throw new RuntimeException("Can't replace BungeeCord thread pool with our own", e);
         }
+        StartupStages stages = new StartupStages(getLogger(), service);
         try {
-            loadConfig();
+            loadConfig(stages);
         } catch (IOException e) {
             throw new RuntimeException("Unable to load/save config", e);
         } catch (JedisConnectionException e) {
             throw new RuntimeException("Unable to connect to your Redis server!", e);
         }
+        PlayerKeys.setBinary(configuration.isBinaryUuids());
         if (pool != null) {
-            try (Jedis tmpRsc = pool.getResource()) {
-                // This is more portable than INFO <section>
-                String info = tmpRsc.info();
-                for (String s : info.split("\r\n")) {
-                    if (s.startsWith("redis_version:")) {
-                        String version = s.split(":")[1];
-                        if (!(usingLua = RedisUtil.canUseLua(version))) {
-                            getLogger().warning("Your version of Redis (" + version + ") is not at least version 2.6. RedisBungee requires a newer version of Redis.");
-                            throw new RuntimeException("Unsupported Redis version detected");
-                        } else {
-                            LuaManager manager = new LuaManager(this);
-                            serverToPlayersScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/server_to_players.lua")));
-                            getPlayerCountScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/get_player_count.lua")));
-                        }
-                        break;
+            luaManager = new LuaManager(this);
+            StartupStages.Stage<Void> version = stages.submit("version check", new Runnable() {
+                @Override
+                public void run() {
+                    checkRedisVersion();
+                }
+            });
+            StartupStages.Stage<Void> scripts = stages.submit("scripts", new Runnable() {
+                @Override
+                public void run() {
+                    luaManager.loadBundledScripts();
+                    serverToPlayersScript = luaManager.getScript("server_to_players");
+                    getPlayerCountScript = luaManager.getScript("get_player_count");
+                }
+            }, version);
+            StartupStages.Stage<Void> leaseStage = stages.submit("lease", new Runnable() {
+                @Override
+                public void run() {
+                    lease = new InstanceLease(RedisBungee.this, configuration.getServerId(), luaManager);
+                    lease.acquire();
+                }
+            }, scripts);
+            StartupStages.Stage<Void> streamStage = stages.submit("event stream", new Runnable() {
+                @Override
+                public void run() {
+                    eventStream = new NetworkEventStream(RedisBungee.this, configuration.isUseRedisStreams(),
+                            configuration.getStreamMaxLength(), configuration.getStreamBatchSize());
+                    if (eventStream.isEnabled()) {
+                        eventStream.start(luaManager);
                     }
                 }
-
-                tmpRsc.hset("heartbeats", configuration.getServerId(), tmpRsc.time().get(0));
-
-                long uuidCacheSize = tmpRsc.hlen("uuid-cache");
-                if (uuidCacheSize > 750000) {
-                    getLogger().info("Looks like you have a really big UUID cache! Run https://www.spigotmc.org/resources/redisbungeecleaner.8505/ as soon as possible.");
+            }, scripts);
+            StartupStages.Stage<Void> statisticsStage = stages.submit("statistics", new Runnable() {
+                @Override
+                public void run() {
+                    statistics = new NetworkStatistics(RedisBungee.this, luaManager, configuration.getStatisticsRetentionDays());
                 }
-            }
-            serverIds = getCurrentServerIds(true, false);
-            uuidTranslator = new UUIDTranslator(this);
-            heartbeatTask = service.scheduleAtFixedRate(new Runnable() {
+            }, scripts);
+            // Nothing may be written for our proxy ID before we hold its lease.
+            StartupStages.Stage<Void> membershipStage = stages.submit("membership", new Runnable() {
                 @Override
                 public void run() {
-                    try (Jedis rsc = pool.getResource()) {
-                        long redisTime = getRedisTime(rsc.time());
-                        rsc.hset("heartbeats", configuration.getServerId(), String.valueOf(redisTime));
-                    } catch (JedisConnectionException e) {
-                        // Redis server has disappeared!
-                        getLogger().log(Level.SEVERE, "Unable to update heartbeat - did your Redis server go away?", e);
-                        return;
+                    try (Jedis tmpRsc = pool.getResource()) {
+                        Pipeline heartbeat = tmpRsc.pipelined();
+                        membership = new ProxyMembership(RedisBungee.this, configuration.getServerId(), Collections.<String>emptyList());
+                        membership.writeHeartbeat(heartbeat, getRedisTime(tmpRsc.time()));
+                        heartbeat.sync();
                     }
-                    try {
-                        serverIds = getCurrentServerIds(true, false);
-                        globalPlayerCount.set(getCurrentCount());
-                    } catch (Throwable e) {
-                        getLogger().log(Level.SEVERE, "Unable to update data - did your Redis server go away?", e);
+                    membership.replace(getCurrentServerIds(true, false));
+                }
+            }, leaseStage);
+            StartupStages.Stage<Void> journal = stages.submit("journal", new Runnable() {
+                @Override
+                public void run() {
+                    degradedMode = new DegradedMode(RedisBungee.this, configuration.isDegradedMode(), configuration.getDegradedJournalSize(), openDiskJournal());
+                }
+            });
+            uuidTranslator = new UUIDTranslator(this);
+            for (StartupStages.Stage<?> stage : Arrays.asList(version, leaseStage, scripts, streamStage, statisticsStage, membershipStage, journal)) {
+                stage.get();
+            }
+            if (degradedMode.isEnabled()) {
+                journalFlushTask = service.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        degradedMode.flush();
                     }
+                }, 50, 50, TimeUnit.MILLISECONDS);
+            }
+            poolTask = service.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    pool.adapt();
+                    bulkPool.adapt();
                 }
-            }, 0, 3, TimeUnit.SECONDS);
+            }, 5, 5, TimeUnit.SECONDS);
+            eventRegistry = new NetworkEventRegistry(this);
             dataManager = new DataManager(this);
+            messenger = new PlayerMessenger(this);
+            rpc = new ProxyRpc(this, service);
+            registerCommandRpc();
+            routeInternalChannels();
             if (configuration.isRegisterBungeeCommands()) {
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.GlistCommand(this));
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.FindCommand(this));
@@ -298,78 +453,308 @@ public final class RedisBungee extends Plugin {
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.ServerIds());
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.PlayerProxyCommand(this));
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.PlistCommand(this));
+            getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.IpPlayersCommand(this));
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.DebugCommand(this));
+            getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.ConvertUuidsCommand(this));
             api = new RedisBungeeAPI(this);
+            serverChanges = new ServerChangeCoalescer(degradedMode, service, configuration.getServerChangeCoalesceMs());
+            loginAdmission = new LoginAdmission(this, configuration.getLoginMaxInFlight(), configuration.getLoginMaxQueued(),
+                    configuration.getLoginLatencyThresholdMs(), configuration.getLoginQueueTimeoutMs());
+            // The heartbeat may replay the journal and run the integrity check, which need everything above.
+            heartbeatTask = service.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try (Jedis rsc = pool.getResource()) {
+                        // Pipelined script calls can't reload the scripts themselves after Redis restarted.
+                        luaManager.ensureLoaded(rsc);
+                        if (!lease.renew()) {
+                            // Another instance owns our proxy ID now, leave its heartbeat alone.
+                            return;
+                        }
+                        long redisTime = getRedisTime(rsc.time());
+                        Pipeline pipeline = rsc.pipelined();
+                        membership.writeHeartbeat(pipeline, redisTime);
+                        pipeline.sync();
+                    } catch (JedisConnectionException e) {
+                        // Redis server has disappeared!
+                        if (!degradedMode.enter(e)) {
+                            getLogger().log(Level.SEVERE, "Unable to update heartbeat - did your Redis server go away?", e);
+                        }
+                        return;
+                    }
+                    if (degradedMode.recover()) {
+                        resyncPlayerIndex("Redis is reachable again");
+                        runIntegrityCheck();
+                    }
+                    try {
+                        // Joins and leaves are pushed to us, so a full poll is only a safety net.
+                        if (membershipPollCountdown.decrementAndGet() <= 0) {
+                            membershipPollCountdown.set(10);
+                            membership.replace(getCurrentServerIds(true, false));
+                        }
+                        globalPlayerCount.set(getCurrentCount());
+                    } catch (Throwable e) {
+                        getLogger().log(Level.SEVERE, "Unable to update data - did your Redis server go away?", e);
+                    }
+                }
+            }, 0, 3, TimeUnit.SECONDS);
             getProxy().getPluginManager().registerListener(this, new RedisBungeeListener(this, configuration.getExemptAddresses()));
             getProxy().getPluginManager().registerListener(this, dataManager);
             psl = new PubSubListener();
             getProxy().getScheduler().runAsync(this, psl);
+            if (eventStream.isEnabled()) {
+                eventStreamTask = service.scheduleWithFixedDelay(eventStream, 0, 100, TimeUnit.MILLISECONDS);
+            }
+            if (statistics.isEnabled()) {
+                statisticsTask = service.scheduleAtFixedRate(statistics, NetworkStatistics.SAMPLE_SECONDS,
+                        NetworkStatistics.SAMPLE_SECONDS, TimeUnit.SECONDS);
+            }
+            try (Jedis tmpRsc = pool.getResource()) {
+                membership.announceJoin(tmpRsc);
+            }
+            // Anything left over from an outage goes in before the integrity check looks at our players.
+            degradedMode.replayLeftovers();
             integrityCheck = service.scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
-                    try (Jedis tmpRsc = pool.getResource()) {
-                        Set<String> players = getLocalPlayersAsUuidStrings();
-                        Set<String> playersInRedis = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                        List<String> lagged = getCurrentServerIds(false, true);
-
-                        // Clean up lagged players.
-                        for (String s : lagged) {
-                            Set<String> laggedPlayers = tmpRsc.smembers("proxy:" + s + ":usersOnline");
-                            tmpRsc.del("proxy:" + s + ":usersOnline");
-                            if (!laggedPlayers.isEmpty()) {
-                                getLogger().info("Cleaning up lagged proxy " + s + " (" + laggedPlayers.size() + " players)...");
-                                for (String laggedPlayer : laggedPlayers) {
-                                    RedisUtil.cleanUpPlayer(laggedPlayer, tmpRsc);
-                                }
-                            }
-                        }
+                    runIntegrityCheck();
+                }
+            }, 0, 1, TimeUnit.MINUTES);
+        }
+        getProxy().registerChannel("legacy:redisbungee");
+        getProxy().registerChannel("RedisBungee");
+        stages.report("Ready for players");
+
+        // Neither of these is needed to let players in.
+        StartupStages.Stage<Void> http = stages.submit("HTTP client", new Runnable() {
+            @Override
+            public void run() {
+                httpClient = new OkHttpClient();
+                Dispatcher dispatcher = new Dispatcher(getExecutorService());
+                httpClient.setDispatcher(dispatcher);
+                NameFetcher.setHttpClient(httpClient);
+                UUIDFetcher.setHttpClient(httpClient);
+            }
+        });
+        StartupStages.Stage<Void> uuidCacheProbe = stages.submit("UUID cache probe", new Runnable() {
+            @Override
+            public void run() {
+                try (Jedis tmpRsc = bulkPool.getResource()) {
+                    long uuidCacheSize = tmpRsc.hlen("uuid-cache");
+                    if (uuidCacheSize > 750000) {
+                        getLogger().info("Looks like you have a really big UUID cache! Run https://www.spigotmc.org/resources/redisbungeecleaner.8505/ as soon as possible.");
+                    }
+                } catch (JedisConnectionException e) {
+                    getLogger().log(Level.WARNING, "Unable to check the size of the UUID cache", e);
+                }
+            }
+        });
+        stages.reportWhenDone("Finished deferred startup", http, uuidCacheProbe);
+    }
 
-                        Set<String> absentLocally = new HashSet<>(playersInRedis);
-                        absentLocally.removeAll(players);
-                        Set<String> absentInRedis = new HashSet<>(players);
-                        absentInRedis.removeAll(playersInRedis);
-
-                        for (String member : absentLocally) {
-                            boolean found = false;
-                            for (String proxyId : getServerIds()) {
-                                if (proxyId.equals(configuration.getServerId())) continue;
-                                if (tmpRsc.sismember("proxy:" + proxyId + ":usersOnline", member)) {
-                                    // Just clean up the set.
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (!found) {
-                                RedisUtil.cleanUpPlayer(member, tmpRsc);
-                                getLogger().warning("Player found in set that was not found locally and globally: " + member);
-                            } else {
-                                tmpRsc.srem("proxy:" + configuration.getServerId() + ":usersOnline", member);
-                                getLogger().warning("Player found in set that was not found locally, but is on another proxy: " + member);
-                            }
-                        }
+    private void checkRedisVersion() {
+        try (Jedis tmpRsc = pool.getResource()) {
+            // This is more portable than INFO <section>
+            String info = tmpRsc.info();
+            for (String s : info.split("\r\n")) {
+                if (s.startsWith("redis_version:")) {
+                    String version = s.split(":")[1];
+                    if (!(usingLua = RedisUtil.canUseLua(version))) {
+                        getLogger().warning("Your version of Redis (" + version + ") is not at least version 2.6. RedisBungee requires a newer version of Redis.");
+                        throw new RuntimeException("Unsupported Redis version detected");
+                    }
+                    break;
+                }
+            }
+        }
+    }
 
-                        Pipeline pipeline = tmpRsc.pipelined();
+    private MappedJournal openDiskJournal() {
+        int megabytes = configuration.getDegradedJournalFileMb();
+        if (!configuration.isDegradedMode() || megabytes <= 0)
+            return null;
+        try {
+            return new MappedJournal(new File(getDataFolder(), "journal.dat"), megabytes * 1024 * 1024);
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Unable to open the journal on disk, writes made while Redis is unreachable will only be kept in memory", e);
+            return null;
+        }
+    }
 
-                        for (String player : absentInRedis) {
-                            // Player not online according to Redis but not BungeeCord.
-                            getLogger().warning("Player " + player + " is on the proxy but not in Redis.");
+    private synchronized void runIntegrityCheck() {
+        if (degradedMode.isActive())
+            return; // Our own players can't be written until Redis comes back.
 
-                            ProxiedPlayer proxiedPlayer = ProxyServer.getInstance().getPlayer(UUID.fromString(player));
-                            if (proxiedPlayer == null)
-                                continue; // We'll deal with it later.
+        // The first run loads the initial snapshot of the network.
+        if (!dataManager.getPlayerIndex().isWarm()) {
+            loadPlayerSnapshot();
+        }
+        try (Jedis tmpRsc = bulkPool.getResource()) {
+            Set<UUID> players = getLocalPlayers();
+            Set<UUID> playersInRedis = decodeMembers(tmpRsc.smembers(PlayerKeys.usersOnline(configuration.getServerId())));
+            List<String> lagged = getCurrentServerIds(false, true);
+
+            // Clean up lagged players.
+            for (String s : lagged) {
+                Set<UUID> laggedPlayers = decodeMembers(tmpRsc.smembers(PlayerKeys.usersOnline(s)));
+                tmpRsc.del(PlayerKeys.usersOnline(s));
+                if (!laggedPlayers.isEmpty()) {
+                    getLogger().info("Cleaning up lagged proxy " + s + " (" + laggedPlayers.size() + " players)...");
+                    for (UUID laggedPlayer : laggedPlayers) {
+                        RedisUtil.cleanUpPlayer(laggedPlayer, tmpRsc);
+                        dataManager.getPlayerIndex().leave(laggedPlayer);
+                    }
+                }
+            }
 
-                            RedisUtil.createPlayer(proxiedPlayer, pipeline, true);
-                        }
+            Set<UUID> absentLocally = new HashSet<>(playersInRedis);
+            absentLocally.removeAll(players);
+            Set<UUID> absentInRedis = new HashSet<>(players);
+            absentInRedis.removeAll(playersInRedis);
+
+            for (UUID member : absentLocally) {
+                boolean found = false;
+                for (String proxyId : getServerIds()) {
+                    if (proxyId.equals(configuration.getServerId())) continue;
+                    if (tmpRsc.sismember(PlayerKeys.usersOnline(proxyId), PlayerKeys.member(member))) {
+                        // Just clean up the set.
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    RedisUtil.cleanUpPlayer(member, tmpRsc);
+                    dataManager.getPlayerIndex().leave(member);
+                    getLogger().warning("Player found in set that was not found locally and globally: " + member);
+                } else {
+                    tmpRsc.srem(PlayerKeys.usersOnline(configuration.getServerId()), PlayerKeys.member(member));
+                    getLogger().warning("Player found in set that was not found locally, but is on another proxy: " + member);
+                }
+            }
 
-                        pipeline.sync();
-                    } catch (Throwable e) {
-                        getLogger().log(Level.SEVERE, "Unable to fix up stored player data", e);
+            Pipeline pipeline = tmpRsc.pipelined();
+
+            for (UUID player : absentInRedis) {
+                // Player not online according to Redis but not BungeeCord.
+                getLogger().warning("Player " + player + " is on the proxy but not in Redis.");
+
+                ProxiedPlayer proxiedPlayer = ProxyServer.getInstance().getPlayer(player);
+                if (proxiedPlayer == null)
+                    continue; // We'll deal with it later.
+
+                RedisUtil.createPlayer(proxiedPlayer, pipeline, true);
+            }
+
+            luaManager.sync(tmpRsc, pipeline);
+
+            checkPlayerIndex();
+        } catch (Throwable e) {
+            getLogger().log(Level.SEVERE, "Unable to fix up stored player data", e);
+        }
+    }
+
+    /**
+     * Compares the player index against the number of players in Redis, and loads a new snapshot if the two disagreed
+     * on two checks in a row. Joins and leaves in flight can make them disagree for a moment. A new snapshot is also
+     * loaded every so often, in case events were lost without the counts showing it.
+     */
+    private synchronized void checkPlayerIndex() {
+        NetworkPlayerIndex index = dataManager.getPlayerIndex();
+        if (!index.isWarm())
+            return;
+        int indexed = index.size();
+        int counted = getCurrentCount();
+        indexSuspect = indexed != counted;
+        if (indexed == counted) {
+            indexMismatches = 0;
+        } else if (++indexMismatches >= 2) {
+            resyncPlayerIndex("the index has " + indexed + " players while Redis has " + counted);
+            return;
+        }
+        if (++checksSinceSnapshot >= SNAPSHOT_INTERVAL_CHECKS) {
+            resyncPlayerIndex("the last snapshot is " + checksSinceSnapshot + " integrity checks old");
+        }
+    }
+
+    private void routeInternalChannels() {
+        eventRegistry.route(NetworkEventStream.DATA_CHANNEL, new NetworkEventRegistry.MessageHandler() {
+            @Override
+            public void onMessage(String channel, String message) {
+                dataManager.handle(message);
+            }
+        });
+        eventRegistry.route(PlayerMessenger.channel(configuration.getServerId()), messenger);
+        eventRegistry.route(ProxyRpc.channel(configuration.getServerId()), rpc);
+        eventRegistry.route(ProxyMembership.CHANNEL, membership);
+        eventRegistry.route(ProxyMembership.EXPIRED_CHANNEL, membership);
+        NetworkEventRegistry.MessageHandler commandHandler = new NetworkEventRegistry.MessageHandler() {
+            @Override
+            public void onMessage(String channel, final String message) {
+                getProxy().getScheduler().runAsync(RedisBungee.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        String command = message.startsWith("/") ? message.substring(1) : message;
+                        getLogger().info("Invoking command via PubSub: /" + command);
+                        getProxy().getPluginManager().dispatchCommand(RedisBungeeCommandSender.instance, command);
                     }
+                });
+            }
+        };
+        eventRegistry.route("redisbungee-allservers", commandHandler);
+        eventRegistry.route("redisbungee-" + configuration.getServerId(), commandHandler);
+    }
+
+    private void registerCommandRpc() {
+        rpc.registerHandler(ProxyCommandResult.RPC_METHOD, String.class, new ProxyRpc.Handler<String, ProxyCommandResult>() {
+            @Override
+            public ProxyCommandResult handle(String sourceProxy, String message) {
+                String command = message.startsWith("/") ? message.substring(1) : message;
+                getLogger().info("Invoking command via PubSub from " + sourceProxy + ": /" + command);
+                CapturingCommandSender sender = new CapturingCommandSender();
+                long start = System.nanoTime();
+                boolean dispatched = getProxy().getPluginManager().dispatchCommand(sender, command);
+                long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                return new ProxyCommandResult(configuration.getServerId(), dispatched, sender.getOutput(), duration);
+            }
+        });
+    }
+
+    /**
+     * Loads a new snapshot of the online players, because events may have been lost. Events that arrive from now on
+     * are buffered until the snapshot is loaded, and the index isn't used in the meantime.
+     */
+    final void resyncPlayerIndex(String reason) {
+        if (dataManager == null)
+            return;
+        getLogger().info("Reloading the online players, as " + reason + ".");
+        dataManager.getPlayerIndex().beginLoading();
+        if (snapshotPending.compareAndSet(false, true)) {
+            getProxy().getScheduler().runAsync(this, new Runnable() {
+                @Override
+                public void run() {
+                    loadPendingSnapshot();
                 }
-            }, 0, 1, TimeUnit.MINUTES);
+            });
+        }
+    }
+
+    private synchronized void loadPendingSnapshot() {
+        // The integrity check may have loaded it already.
+        if (snapshotPending.get()) {
+            loadPlayerSnapshot();
+        }
+    }
+
+    private synchronized void loadPlayerSnapshot() {
+        snapshotPending.set(false);
+        try (Jedis jedis = bulkPool.getResource()) {
+            dataManager.getPlayerIndex().loadSnapshot(jedis, getServerIds(), uuidTranslator, getLogger());
+            indexMismatches = 0;
+            checksSinceSnapshot = 0;
+            indexSuspect = false;
+        } catch (Throwable e) {
+            getLogger().log(Level.SEVERE, "Unable to load online players, will retry during the next integrity check", e);
         }
-        getProxy().registerChannel("legacy:redisbungee");
-        getProxy().registerChannel("RedisBungee");
     }
 
     @Override
@@ -379,22 +764,46 @@ public final class RedisBungee extends Plugin {
             psl.poison();
             integrityCheck.cancel(true);
             heartbeatTask.cancel(true);
+            poolTask.cancel(true);
+            if (journalFlushTask != null) {
+                journalFlushTask.cancel(true);
+            }
+            if (eventStreamTask != null) {
+                eventStreamTask.cancel(true);
+            }
+            if (statisticsTask != null) {
+                statisticsTask.cancel(true);
+            }
             getProxy().getPluginManager().unregisterListeners(this);
 
-            try (Jedis tmpRsc = pool.getResource()) {
-                tmpRsc.hdel("heartbeats", configuration.getServerId());
-                if (tmpRsc.scard("proxy:" + configuration.getServerId() + ":usersOnline") > 0) {
-                    Set<String> players = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                    for (String member : players)
-                        RedisUtil.cleanUpPlayer(member, tmpRsc);
+            if (degradedMode.isActive()) {
+                getLogger().warning("Redis is still unreachable, " + degradedMode.getJournalSize() + " writes were not replayed. " +
+                        "A journal on disk is replayed the next time the proxy starts.");
+            } else if (lease.isLost()) {
+                getLogger().warning("Another instance took over proxy ID " + configuration.getServerId() + ", leaving its players alone.");
+            } else {
+                try (Jedis tmpRsc = pool.getResource()) {
+                    membership.announceLeave(tmpRsc);
+                    if (tmpRsc.scard(PlayerKeys.usersOnline(configuration.getServerId())) > 0) {
+                        Set<UUID> players = decodeMembers(tmpRsc.smembers(PlayerKeys.usersOnline(configuration.getServerId())));
+                        for (UUID member : players)
+                            RedisUtil.cleanUpPlayer(member, tmpRsc);
+                    }
                 }
+                lease.release();
+            }
+            try {
+                degradedMode.close();
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Unable to close the journal", e);
             }
 
             pool.destroy();
+            bulkPool.destroy();
         }
     }
 
-    private void loadConfig() throws IOException, JedisConnectionException {
+    private void loadConfig(StartupStages stages) throws IOException, JedisConnectionException {
         if (!getDataFolder().exists()) {
             getDataFolder().mkdir();
         }
@@ -427,70 +836,52 @@ public final class RedisBungee extends Plugin {
 
         if (redisServer != null && !redisServer.isEmpty()) {
             final String finalRedisPassword = redisPassword;
-            FutureTask<JedisPool> task = new FutureTask<>(new Callable<JedisPool>() {
+            final int timeout = configuration.getInt("redis-timeout-ms", 2000);
+            final int growthLimit = configuration.getInt("redis-pool-growth-limit", 16);
+            StartupStages.Stage<AdaptiveJedisPool[]> pools = stages.submit("pools", new Callable<AdaptiveJedisPool[]>() {
                 @Override
-                public JedisPool call() throws Exception {
-                    // Create the pool...
-                    JedisPoolConfig config = new JedisPoolConfig();
-                    config.setMaxTotal(configuration.getInt("max-redis-connections", 8));
-                    return new JedisPool(config, redisServer, redisPort, 0, finalRedisPassword);
+                public AdaptiveJedisPool[] call() throws Exception {
+                    // Create the pools...
+                    int hotSize = configuration.getInt("max-redis-connections", 8);
+                    int bulkSize = configuration.getInt("max-bulk-redis-connections", 4);
+                    return new AdaptiveJedisPool[]{
+                            new AdaptiveJedisPool("hot", getLogger(), createPoolConfig(configuration, hotSize), hotSize + growthLimit,
+                                    redisServer, redisPort, timeout, finalRedisPassword),
+                            new AdaptiveJedisPool("bulk", getLogger(), createPoolConfig(configuration, bulkSize), bulkSize + growthLimit / 2,
+                                    redisServer, redisPort, timeout, finalRedisPassword)
+                    };
                 }
             });
 
-            getProxy().getScheduler().runAsync(this, task);
-
-            try {
-                pool = task.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException("Unable to create Redis pool", e);
-            }
+            AdaptiveJedisPool[] created = pools.get();
+            pool = created[0];
+            bulkPool = created[1];
 
-            // Test the connection
-            try (Jedis rsc = pool.getResource()) {
-                rsc.ping();
-                // If that worked, now we can check for an existing, alive Bungee:
-                File crashFile = new File(getDataFolder(), "restarted_from_crash.txt");
-                if (crashFile.exists()) {
-                    crashFile.delete();
-                } else if (rsc.hexists("heartbeats", serverId)) {
-                    try {
-                        long value = Long.parseLong(rsc.hget("heartbeats", serverId));
-                        long redisTime = getRedisTime(rsc.time());
-                        if (redisTime < value + 20) {
-                            getLogger().severe("You have launched a possible impostor BungeeCord instance. Another instance is already running.");
-                            getLogger().severe("For data consistency reasons, RedisBungee will now disable itself.");
-                            getLogger().severe("If this instance is coming up from a crash, create a file in your RedisBungee plugins directory with the name 'restarted_from_crash.txt' and RedisBungee will not perform this check.");
-                            throw new RuntimeException("Possible impostor instance!");
-                        }
-                    } catch (NumberFormatException ignored) {
+            // Test the connection while the configuration is parsed. Whether another instance is using our proxy ID
+            // is checked by the lease.
+            StartupStages.Stage<Void> ping = stages.submit("ping", new Runnable() {
+                @Override
+                public void run() {
+                    try (Jedis rsc = pool.getResource()) {
+                        rsc.ping();
                     }
                 }
-
-                FutureTask<Void> task2 = new FutureTask<>(new Callable<Void>() {
-                    @Override
-                    public Void call() throws Exception {
-                        httpClient = new OkHttpClient();
-                        Dispatcher dispatcher = new Dispatcher(getExecutorService());
-                        httpClient.setDispatcher(dispatcher);
-                        NameFetcher.setHttpClient(httpClient);
-                        UUIDFetcher.setHttpClient(httpClient);
-                        RedisBungee.configuration = new RedisBungeeConfiguration(RedisBungee.this.getPool(), configuration);
-                        return null;
-                    }
-                });
-
-                getProxy().getScheduler().runAsync(this, task2);
-
-                try {
-                    task2.get();
-                } catch (InterruptedException | ExecutionException e) {
-                    throw new RuntimeException("Unable to create HTTP client", e);
+            });
+            StartupStages.Stage<Void> parse = stages.submit("configuration", new Runnable() {
+                @Override
+                public void run() {
+                    RedisBungee.configuration = new RedisBungeeConfiguration(RedisBungee.this.getPool(), configuration);
                 }
-
+            });
+            try {
+                ping.get();
+                parse.get();
                 getLogger().log(Level.INFO, "Successfully connected to Redis.");
             } catch (JedisConnectionException e) {
                 pool.destroy();
+                bulkPool.destroy();
                 pool = null;
+                bulkPool = null;
                 throw e;
             }
         } else {
@@ -498,6 +889,15 @@ public final class RedisBungee extends Plugin {
         }
     }
 
+    private static JedisPoolConfig createPoolConfig(Configuration configuration, int size) {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(size);
+        config.setMaxIdle(size);
+        // Fail instead of waiting forever when every connection is busy.
+        config.setMaxWaitMillis(configuration.getInt("redis-acquire-timeout-ms", 2000));
+        return config;
+    }
+
     @NoArgsConstructor(access = AccessLevel.PRIVATE)
     class PubSubListener implements Runnable {
         private JedisPubSubHandler jpsh;
@@ -513,6 +913,12 @@ public final class RedisBungee extends Plugin {
                     addedChannels.add("redisbungee-" + configuration.getServerId());
                     addedChannels.add("redisbungee-allservers");
                     addedChannels.add("redisbungee-data");
+                    addedChannels.add(ProxyMembership.CHANNEL);
+                    addedChannels.add(PlayerMessenger.channel(configuration.getServerId()));
+                    addedChannels.add(ProxyRpc.channel(configuration.getServerId()));
+                    if (configuration.isKeyspaceNotifications()) {
+                        addedChannels.add(ProxyMembership.EXPIRED_CHANNEL);
+                    }
                     rsc.subscribe(jpsh, addedChannels.toArray(new String[0]));
                 } catch (Exception e) {
                     // FIXME: Extremely ugly hack
@@ -558,12 +964,15 @@ public final class RedisBungee extends Plugin {
         @Override
         public void onMessage(final String s, final String s2) {
             if (s2.trim().length() == 0) return;
-            getProxy().getScheduler().runAsync(RedisBungee.this, new Runnable() {
-                @Override
-                public void run() {
-                    getProxy().getPluginManager().callEvent(new PubSubMessageEvent(s, s2));
-                }
-            });
+            eventRegistry.dispatch(s, s2);
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            // Events published while we were resubscribing are gone.
+            if (channel.equals(NetworkEventStream.DATA_CHANNEL) && !dataSubscribed.compareAndSet(false, true)) {
+                resyncPlayerIndex("PubSub had to resubscribe");
+            }
         }
     }
 }
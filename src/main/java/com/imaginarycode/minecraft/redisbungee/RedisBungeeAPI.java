@@ -2,13 +2,18 @@ package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
 import lombok.NonNull;
+import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.config.ServerInfo;
 
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class exposes some internal RedisBungee functions. You obtain an instance of this object by invoking {@link RedisBungee#getApi()}.
@@ -25,7 +30,10 @@ public class RedisBungeeAPI {
         this.reservedChannels = ImmutableList.of(
                 "redisbungee-allservers",
                 "redisbungee-" + RedisBungee.getConfiguration().getServerId(),
-                "redisbungee-data"
+                "redisbungee-data",
+                ProxyMembership.CHANNEL,
+                PlayerMessenger.channel(RedisBungee.getConfiguration().getServerId()),
+                ProxyRpc.channel(RedisBungee.getConfiguration().getServerId())
         );
     }
 
@@ -61,10 +69,45 @@ public class RedisBungeeAPI {
         return plugin.getProxy().getServerInfo(server);
     }
 
+    /**
+     * Get the last time each of the specified players was on. The values follow {@link #getLastOnline(UUID)}.
+     * <p>
+     * Cached values are used where possible, and all other players are looked up in a single round trip to Redis.
+     *
+     * @param players the players to look up
+     * @return an immutable map of each player to the last time they were on
+     * @since 0.5
+     */
+    public final Map<UUID, Long> getLastOnline(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getLastOnline(players);
+    }
+
+    /**
+     * Get the servers where the specified players are playing. Players that are offline or not connected to a server
+     * are not included in the result.
+     * <p>
+     * Cached values are used where possible, and all other players are looked up in a single round trip to Redis.
+     *
+     * @param players the players to look up
+     * @return an immutable map of each player to the {@link net.md_5.bungee.api.config.ServerInfo} they are on
+     * @since 0.5
+     */
+    public final Map<UUID, ServerInfo> getServersFor(@NonNull Collection<UUID> players) {
+        ImmutableMap.Builder<UUID, ServerInfo> builder = ImmutableMap.builder();
+        for (Map.Entry<UUID, String> entry : plugin.getDataManager().getServers(players).entrySet()) {
+            ServerInfo info = plugin.getProxy().getServerInfo(entry.getValue());
+            if (info != null)
+                builder.put(entry.getKey(), info);
+        }
+        return builder.build();
+    }
+
     /**
      * Get a combined list of players on this network.
      * <p>
      * <strong>Note that this function returns an instance of {@link com.google.common.collect.ImmutableSet}.</strong>
+     * The same instance is returned until a player joins or leaves, so calling this often is cheap. To follow the
+     * players online without going through the whole set, use {@link #getOnlinePlayerChangesSince(long)}.
      *
      * @return a Set with all players found
      */
@@ -72,6 +115,25 @@ public class RedisBungeeAPI {
         return plugin.getPlayers();
     }
 
+    /**
+     * Get the players who joined or left the network since an earlier call. Start with version 0, and pass the
+     * version of each result to the next call. If the changes since that version are no longer known, for example
+     * after a long time or after the proxy reloaded the players from Redis, the result is marked as
+     * {@link OnlinePlayerChanges#isFull() full} and holds every player online instead.
+     *
+     * @param version the version from the last result, or 0 for the first call
+     * @return the players who joined or left since that version
+     * @since 0.5
+     */
+    public final OnlinePlayerChanges getOnlinePlayerChangesSince(long version) {
+        NetworkPlayerIndex index = plugin.getDataManager().getPlayerIndex();
+        if (!index.isWarm()) {
+            // Nothing is tracked yet, so have the caller start over next time.
+            return new OnlinePlayerChanges(0, true, getPlayersOnline(), ImmutableSet.<UUID>of());
+        }
+        return index.changesSince(version);
+    }
+
     /**
      * Get a combined list of players on this network, as a collection of usernames.
      *
@@ -138,6 +200,176 @@ public class RedisBungeeAPI {
         return plugin.getDataManager().getIp(player);
     }
 
+    /**
+     * Get the players that were last seen on the network at or after the given time, most recent first. Players who
+     * logged off are listed with the time they did so, and players who are still online with the time they logged in.
+     * Only the last {@code activity-history-days} are kept.
+     *
+     * @param since the earliest time to include, in milliseconds since the epoch
+     * @return an immutable map of each player to the time they were last seen
+     * @since 0.5
+     */
+    public final Map<UUID, Long> getPlayersSeenSince(long since) {
+        return plugin.getDataManager().getRecentlySeen(since, 0, -1);
+    }
+
+    /**
+     * Page through the players that were most recently seen on the network, most recent first. Players who logged
+     * off are listed with the time they did so, and players who are still online with the time they logged in.
+     *
+     * @param offset the number of players to skip
+     * @param count  the maximum number of players to return
+     * @return an immutable map of each player to the time they were last seen
+     * @since 0.5
+     */
+    public final Map<UUID, Long> getRecentlySeen(int offset, int count) {
+        Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+        Preconditions.checkArgument(count > 0, "count must be positive");
+        return plugin.getDataManager().getRecentlySeen(0, offset, count);
+    }
+
+    /**
+     * Get the peak number of players on the network for each minute in a time range. Minutes that were not recorded
+     * are left out. Only the last {@code statistics-retention-days} are kept.
+     *
+     * @param from the start of the range, in milliseconds since the epoch
+     * @param to   the end of the range, in milliseconds since the epoch
+     * @return an immutable sorted map of the start of each minute to the peak player count in it
+     * @since 0.5
+     */
+    public final SortedMap<Long, Integer> getNetworkPeaks(long from, long to) {
+        Preconditions.checkArgument(from <= to, "from must not be after to");
+        return plugin.getStatistics().getPeaks(null, from, to);
+    }
+
+    /**
+     * Get the peak number of players on a proxy for each minute in a time range. Minutes that were not recorded are
+     * left out. Only the last {@code statistics-retention-days} are kept.
+     *
+     * @param proxyId the proxy
+     * @param from    the start of the range, in milliseconds since the epoch
+     * @param to      the end of the range, in milliseconds since the epoch
+     * @return an immutable sorted map of the start of each minute to the peak player count in it
+     * @since 0.5
+     */
+    public final SortedMap<Long, Integer> getProxyPeaks(@NonNull String proxyId, long from, long to) {
+        Preconditions.checkArgument(from <= to, "from must not be after to");
+        return plugin.getStatistics().getPeaks(proxyId, from, to);
+    }
+
+    /**
+     * Get an estimate of the number of unique players that joined the network on the days (in UTC) overlapping a
+     * time range. The estimate is usually within 1% of the real number.
+     *
+     * @param from the start of the range, in milliseconds since the epoch
+     * @param to   the end of the range, in milliseconds since the epoch
+     * @return the estimated number of unique players
+     * @since 0.5
+     */
+    public final long getUniquePlayers(long from, long to) {
+        Preconditions.checkArgument(from <= to, "from must not be after to");
+        return plugin.getStatistics().getUniquePlayers(from, to);
+    }
+
+    /**
+     * Get the players that have connected from this address, along with the last time each did so, most recent
+     * first. Only connections within the configured {@code ip-history-days} are remembered.
+     *
+     * @param address the address to look up
+     * @return an immutable map of each player to the last time they connected from the address
+     * @since 0.5
+     */
+    public final Map<UUID, Long> getPlayersByIp(@NonNull InetAddress address) {
+        return plugin.getDataManager().getPlayersByAddress(PlayerKeys.ip(address));
+    }
+
+    /**
+     * Get the players that have connected from the /24 (IPv4) or /64 (IPv6) subnet this address is in, along with the
+     * last time each did so, most recent first. This requires {@code ip-history-subnets} to be enabled.
+     *
+     * @param address an address in the subnet to look up
+     * @return an immutable map of each player to the last time they connected from the subnet
+     * @since 0.5
+     */
+    public final Map<UUID, Long> getPlayersBySubnet(@NonNull InetAddress address) {
+        return plugin.getDataManager().getPlayersByAddress(PlayerKeys.subnet(address));
+    }
+
+    /**
+     * Get the {@link java.net.InetAddress}es associated with the specified players. Offline players are not included
+     * in the result.
+     * <p>
+     * Cached values are used where possible, and all other players are looked up in a single round trip to Redis.
+     *
+     * @param players the players to fetch the IPs for
+     * @return an immutable map of each online player to their {@link java.net.InetAddress}
+     * @since 0.5
+     */
+    public final Map<UUID, InetAddress> getPlayerIps(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getIps(players);
+    }
+
+    /**
+     * Get the RedisBungee proxy IDs the specified players are connected to. Offline players are not included in the
+     * result.
+     * <p>
+     * Cached values are used where possible, and all other players are looked up in a single round trip to Redis.
+     *
+     * @param players the players to look up
+     * @return an immutable map of each online player to the proxy they are connected to
+     * @since 0.5
+     */
+    public final Map<UUID, String> getProxiesFor(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getProxies(players);
+    }
+
+    /**
+     * Find the players online on the network whose name starts with the given prefix, ignoring case. This is
+     * answered from a local index that is kept up to date as players join and leave, so it is cheap enough to call
+     * while tab completing.
+     *
+     * @param prefix the prefix to search for
+     * @param limit  the maximum number of players to return
+     * @return an immutable map of player names to their UUIDs, sorted by name
+     * @since 0.5
+     */
+    public final Map<String, UUID> searchPlayers(@NonNull String prefix, int limit) {
+        Preconditions.checkArgument(limit > 0, "limit must be positive");
+        return ImmutableMap.copyOf(plugin.getDataManager().getPlayerIndex().search(prefix, limit));
+    }
+
+    /**
+     * Get the RPC layer, which lets proxies call handlers registered on other proxies and wait for their answer.
+     *
+     * @return the {@link ProxyRpc}
+     * @since 0.5
+     */
+    public final ProxyRpc getRpc() {
+        return plugin.getRpc();
+    }
+
+    /**
+     * Get the login admission controller, which shows whether logins are currently being queued or turned away
+     * because Redis is slow or unavailable.
+     *
+     * @return the {@link LoginAdmission}
+     * @since 0.5
+     */
+    public final LoginAdmission getLoginAdmission() {
+        return plugin.getLoginAdmission();
+    }
+
+    /**
+     * Get the registry used to subscribe to network events, PubSub channels and server changes without going
+     * through BungeeCord's event bus.
+     *
+     * @return the {@link NetworkEventRegistry}
+     * @since 0.5
+     */
+    public final NetworkEventRegistry getEventRegistry() {
+        return plugin.getEventRegistry();
+    }
+
     /**
      * Get the RedisBungee proxy ID this player is connected to.
      *
@@ -160,6 +392,39 @@ public class RedisBungeeAPI {
         plugin.sendProxyCommand("allservers", command);
     }
 
+    /**
+     * Sends a proxy command to all proxies and waits for each of them to acknowledge it. Each proxy sends back
+     * whether the command ran, how long it took and the messages it sent while running.
+     * <p>
+     * The future completes once every proxy has answered or the timeout has passed. Every proxy the command was sent
+     * to is in the result, along with whether it answered in time, failed, or ran the command.
+     *
+     * @param command the command to send and execute
+     * @param timeout how long to wait for the proxies
+     * @param unit    the unit of the timeout
+     * @return a future of an immutable map of proxy IDs to how the command went on each of them
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<String, RpcOutcome<ProxyCommandResult>>> sendAcknowledgedProxyCommand(@NonNull String command, long timeout, @NonNull TimeUnit unit) {
+        return plugin.getRpc().callAll(ProxyCommandResult.RPC_METHOD, command, ProxyCommandResult.class, timeout, unit);
+    }
+
+    /**
+     * Sends a proxy command to the proxy with the given ID and waits for it to acknowledge it.
+     *
+     * @param proxyId a proxy ID
+     * @param command the command to send and execute
+     * @param timeout how long to wait for the proxy
+     * @param unit    the unit of the timeout
+     * @return a future of the result, which fails with a {@link java.util.concurrent.TimeoutException} if the proxy
+     * did not answer in time
+     * @since 0.5
+     */
+    public final ListenableFuture<ProxyCommandResult> sendAcknowledgedProxyCommand(@NonNull String proxyId, @NonNull String command, long timeout, @NonNull TimeUnit unit) {
+        Preconditions.checkArgument(plugin.isServerId(proxyId), "proxyId is invalid");
+        return plugin.getRpc().call(proxyId, ProxyCommandResult.RPC_METHOD, command, ProxyCommandResult.class, timeout, unit);
+    }
+
     /**
      * Sends a proxy command to the proxy with the given ID. "allservers" means all proxies.
      *
@@ -173,8 +438,80 @@ public class RedisBungeeAPI {
         plugin.sendProxyCommand(proxyId, command);
     }
 
+    /**
+     * Sends a chat message to a player, wherever they are on the network. The message is only published to the proxy
+     * the player is on. Nothing happens if the player is offline.
+     *
+     * @param player  the player to send the message to
+     * @param message the message to send
+     * @since 0.5
+     */
+    public final void sendMessage(@NonNull UUID player, @NonNull BaseComponent... message) {
+        plugin.getMessenger().sendMessage(Collections.singleton(player), message);
+    }
+
+    /**
+     * Sends a chat message to many players, wherever they are on the network. The message is published once to each
+     * proxy that has at least one of the players on it.
+     *
+     * @param players the players to send the message to
+     * @param message the message to send
+     * @since 0.5
+     */
+    public final void sendMessage(@NonNull Collection<UUID> players, @NonNull BaseComponent... message) {
+        plugin.getMessenger().sendMessage(players, message);
+    }
+
+    /**
+     * Disconnects a player from the network, wherever they are. Nothing happens if the player is offline.
+     *
+     * @param player the player to kick
+     * @param reason the reason shown to the player
+     * @since 0.5
+     */
+    public final void kick(@NonNull UUID player, @NonNull BaseComponent... reason) {
+        plugin.getMessenger().kick(Collections.singleton(player), reason);
+    }
+
+    /**
+     * Disconnects many players from the network, wherever they are. The request is published once to each proxy that
+     * has at least one of the players on it.
+     *
+     * @param players the players to kick
+     * @param reason  the reason shown to the players
+     * @since 0.5
+     */
+    public final void kick(@NonNull Collection<UUID> players, @NonNull BaseComponent... reason) {
+        plugin.getMessenger().kick(players, reason);
+    }
+
+    /**
+     * Connects a player to a server, wherever they are on the network. The server must be known to the proxy the
+     * player is on. Nothing happens if the player is offline.
+     *
+     * @param player the player to connect
+     * @param server the name of the server
+     * @since 0.5
+     */
+    public final void connect(@NonNull UUID player, @NonNull String server) {
+        plugin.getMessenger().connect(Collections.singleton(player), server);
+    }
+
+    /**
+     * Connects many players to a server, wherever they are on the network. The request is published once to each
+     * proxy that has at least one of the players on it.
+     *
+     * @param players the players to connect
+     * @param server  the name of the server
+     * @since 0.5
+     */
+    public final void connect(@NonNull Collection<UUID> players, @NonNull String server) {
+        plugin.getMessenger().connect(players, server);
+    }
+
     /**
      * Sends a message to a PubSub channel. The channel has to be subscribed to on this, or another redisbungee instance for {@link com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent} to fire.
+     * While Redis is unreachable, the message is dropped.
      *
      * @param channel The PubSub channel
      * @param message the message body to send
@@ -16,7 +16,7 @@ import java.util.Collections;
  * @author tuxed
  * @since 0.2.3
  */
-@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@NoArgsConstructor(access = AccessLevel.PACKAGE)
 public class RedisBungeeCommandSender implements CommandSender {
     static final RedisBungeeCommandSender instance = new RedisBungeeCommandSender();
 
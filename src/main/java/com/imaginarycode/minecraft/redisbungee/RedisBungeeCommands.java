@@ -1,8 +1,14 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.cache.CacheStats;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.imaginarycode.minecraft.redisbungee.util.AdaptiveJedisPool;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.BaseComponent;
@@ -10,13 +16,23 @@ import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.plugin.Command;
+import net.md_5.bungee.api.plugin.TabExecutor;
+import redis.clients.jedis.Jedis;
 
 import java.net.InetAddress;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 /**
  * This class contains subclasses that are used for the commands RedisBungee overrides or includes: /glist, /find and /lastseen.
@@ -33,11 +49,162 @@ class RedisBungeeCommands {
             new ComponentBuilder("No such player found.").color(ChatColor.RED).create();
     private static final BaseComponent[] NO_COMMAND_SPECIFIED =
             new ComponentBuilder("You must specify a command to be run.").color(ChatColor.RED).create();
+    private static final int PAGE_SIZE = 100;
+    private static final int TAB_COMPLETE_LIMIT = 50;
+    private static final int ACK_TIMEOUT_SECONDS = 10;
 
     private static String playerPlural(int num) {
         return num == 1 ? num + " player is" : num + " players are";
     }
 
+    /**
+     * Resolves a name, preferring the online players in the player index over the UUID translator, which may have to
+     * ask Mojang.
+     */
+    private static UUID resolveUuid(RedisBungee plugin, String name) {
+        UUID uuid = plugin.getDataManager().getPlayerIndex().getUuid(name);
+        return uuid != null ? uuid : plugin.getUuidTranslator().getTranslatedUuid(name, true);
+    }
+
+    private static Iterable<String> completePlayers(String[] args) {
+        if (args.length != 1)
+            return Collections.emptyList();
+        return RedisBungee.getApi().searchPlayers(args[0], TAB_COMPLETE_LIMIT).keySet();
+    }
+
+    private static int parsePage(String[] args, int index) {
+        if (args.length <= index)
+            return 1;
+        try {
+            return Integer.parseInt(args[index]);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * The players on one server in a listing.
+     */
+    private interface ServerListing {
+        int size();
+
+        /**
+         * @return the names of the players from skip to skip + limit, sorted by name ignoring case
+         */
+        List<String> names(int skip, int limit);
+    }
+
+    /**
+     * Returns the players on each server, sorted by server name, optionally only for one server or one proxy.
+     * The player index is used when it is loaded, which keeps the players on each server sorted by name, so that only
+     * the players on the page shown are looked at. Otherwise the players are fetched from Redis, and the names of a
+     * whole server are resolved and sorted once it is shown.
+     */
+    private static SortedMap<String, ServerListing> serversToPlayers(final RedisBungee plugin, String server, final String proxy) {
+        SortedMap<String, ServerListing> result = new TreeMap<>();
+        final NetworkPlayerIndex index = plugin.getDataManager().getPlayerIndex();
+
+        if (index.isWarm()) {
+            Collection<String> servers = server == null ? index.getServers() : Collections.singleton(server);
+            for (final String s : servers) {
+                final int count = index.countOn(s, proxy);
+                if (count == 0)
+                    continue;
+                result.put(s, new ServerListing() {
+                    @Override
+                    public int size() {
+                        return count;
+                    }
+
+                    @Override
+                    public List<String> names(int skip, int limit) {
+                        return index.namesOn(s, proxy, skip, limit);
+                    }
+                });
+            }
+            return result;
+        }
+
+        Set<UUID> onProxy = proxy == null ? null : RedisBungee.getApi().getPlayersOnProxy(proxy);
+        for (Map.Entry<String, Collection<UUID>> entry : RedisBungee.getApi().getServerToPlayers().asMap().entrySet()) {
+            if (server != null && !server.equals(entry.getKey()))
+                continue;
+            final List<UUID> players = new ArrayList<>();
+            for (UUID uuid : entry.getValue()) {
+                if (onProxy == null || onProxy.contains(uuid))
+                    players.add(uuid);
+            }
+            if (players.isEmpty())
+                continue;
+            result.put(entry.getKey(), new ServerListing() {
+                @Override
+                public int size() {
+                    return players.size();
+                }
+
+                @Override
+                public List<String> names(int skip, int limit) {
+                    Map<UUID, String> resolved = plugin.getUuidTranslator().getNamesFromUuids(players);
+                    List<String> names = new ArrayList<>(players.size());
+                    for (UUID uuid : players) {
+                        String name = resolved.get(uuid);
+                        names.add(name != null ? name : uuid.toString());
+                    }
+                    Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+                    return names.subList(Math.min(skip, names.size()), Math.min(names.size(), skip + limit));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Sends one page of a player listing. Names are only looked up for the servers that appear on the page, and each
+     * server is sent as soon as its names are known.
+     */
+    private static void sendPage(CommandSender sender, SortedMap<String, ServerListing> servers,
+                                 int page, ChatColor serverColor, String pageCommand) {
+        int total = 0;
+        for (ServerListing players : servers.values()) {
+            total += players.size();
+        }
+        int pages = Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE);
+        page = Math.min(Math.max(page, 1), pages);
+
+        int skip = (page - 1) * PAGE_SIZE;
+        int remaining = PAGE_SIZE;
+        for (Map.Entry<String, ServerListing> entry : servers.entrySet()) {
+            if (remaining == 0)
+                break;
+            ServerListing players = entry.getValue();
+            if (skip >= players.size()) {
+                skip -= players.size();
+                continue;
+            }
+
+            List<String> names = players.names(skip, remaining);
+
+            TextComponent serverName = new TextComponent();
+            serverName.setColor(serverColor);
+            serverName.setText("[" + entry.getKey() + "] ");
+            TextComponent serverCount = new TextComponent();
+            serverCount.setColor(ChatColor.YELLOW);
+            serverCount.setText("(" + players.size() + "): ");
+            TextComponent serverPlayers = new TextComponent();
+            serverPlayers.setColor(ChatColor.WHITE);
+            serverPlayers.setText(Joiner.on(", ").join(names));
+            sender.sendMessage(serverName, serverCount, serverPlayers);
+
+            remaining -= names.size();
+            skip = 0;
+        }
+
+        ComponentBuilder footer = new ComponentBuilder("Page " + page + " of " + pages + ".").color(ChatColor.YELLOW);
+        if (page < pages)
+            footer.append(" Use " + pageCommand + (page + 1) + " to see the next page.");
+        sender.sendMessage(footer.create());
+    }
+
     public static class GlistCommand extends Command {
         private final RedisBungee plugin;
 
@@ -55,34 +222,20 @@ class RedisBungeeCommands {
                     BaseComponent[] playersOnline = new ComponentBuilder("").color(ChatColor.YELLOW)
                             .append(playerPlural(count) + " currently online.").create();
                     if (args.length > 0 && args[0].equals("showall")) {
-                        Multimap<String, UUID> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
-                        Multimap<String, String> human = HashMultimap.create();
-                        for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
-                            human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
-                        }
-                        for (String server : new TreeSet<>(serverToPlayers.keySet())) {
-                            TextComponent serverName = new TextComponent();
-                            serverName.setColor(ChatColor.GREEN);
-                            serverName.setText("[" + server + "] ");
-                            TextComponent serverCount = new TextComponent();
-                            serverCount.setColor(ChatColor.YELLOW);
-                            serverCount.setText("(" + serverToPlayers.get(server).size() + "): ");
-                            TextComponent serverPlayers = new TextComponent();
-                            serverPlayers.setColor(ChatColor.WHITE);
-                            serverPlayers.setText(Joiner.on(", ").join(human.get(server)));
-                            sender.sendMessage(serverName, serverCount, serverPlayers);
-                        }
+                        sendPage(sender, serversToPlayers(plugin, null, null), parsePage(args, 1), ChatColor.GREEN, "/glist showall ");
                         sender.sendMessage(playersOnline);
+                    } else if (args.length > 1 && args[0].equals("server")) {
+                        sendPage(sender, serversToPlayers(plugin, args[1], null), parsePage(args, 2), ChatColor.GREEN, "/glist server " + args[1] + " ");
                     } else {
                         sender.sendMessage(playersOnline);
-                        sender.sendMessage(new ComponentBuilder("To see all players online, use /glist showall.").color(ChatColor.YELLOW).create());
+                        sender.sendMessage(new ComponentBuilder("To see all players online, use /glist showall [page], or /glist server <server> [page] for one server.").color(ChatColor.YELLOW).create());
                     }
                 }
             });
         }
     }
 
-    public static class FindCommand extends Command {
+    public static class FindCommand extends Command implements TabExecutor {
         private final RedisBungee plugin;
 
         FindCommand(RedisBungee plugin) {
@@ -96,7 +249,7 @@ class RedisBungeeCommands {
                 @Override
                 public void run() {
                     if (args.length > 0) {
-                        UUID uuid = plugin.getUuidTranslator().getTranslatedUuid(args[0], true);
+                        UUID uuid = resolveUuid(plugin, args[0]);
                         if (uuid == null) {
                             sender.sendMessage(PLAYER_NOT_FOUND);
                             return;
@@ -116,9 +269,14 @@ class RedisBungeeCommands {
                 }
             });
         }
+
+        @Override
+        public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+            return completePlayers(args);
+        }
     }
 
-    public static class LastSeenCommand extends Command {
+    public static class LastSeenCommand extends Command implements TabExecutor {
         private final RedisBungee plugin;
 
         LastSeenCommand(RedisBungee plugin) {
@@ -132,7 +290,7 @@ class RedisBungeeCommands {
                 @Override
                 public void run() {
                     if (args.length > 0) {
-                        UUID uuid = plugin.getUuidTranslator().getTranslatedUuid(args[0], true);
+                        UUID uuid = resolveUuid(plugin, args[0]);
                         if (uuid == null) {
                             sender.sendMessage(PLAYER_NOT_FOUND);
                             return;
@@ -156,9 +314,14 @@ class RedisBungeeCommands {
                 }
             });
         }
+
+        @Override
+        public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+            return completePlayers(args);
+        }
     }
 
-    public static class IpCommand extends Command {
+    public static class IpCommand extends Command implements TabExecutor {
         private final RedisBungee plugin;
 
         IpCommand(RedisBungee plugin) {
@@ -172,7 +335,7 @@ class RedisBungeeCommands {
                 @Override
                 public void run() {
                     if (args.length > 0) {
-                        UUID uuid = plugin.getUuidTranslator().getTranslatedUuid(args[0], true);
+                        UUID uuid = resolveUuid(plugin, args[0]);
                         if (uuid == null) {
                             sender.sendMessage(PLAYER_NOT_FOUND);
                             return;
@@ -192,9 +355,70 @@ class RedisBungeeCommands {
                 }
             });
         }
+
+        @Override
+        public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+            return completePlayers(args);
+        }
     }
 
-    public static class PlayerProxyCommand extends Command {
+    public static class IpPlayersCommand extends Command implements TabExecutor {
+        private final RedisBungee plugin;
+
+        IpPlayersCommand(RedisBungee plugin) {
+            super("ipplayers", "redisbungee.command.ipplayers", "ripplayers");
+            this.plugin = plugin;
+        }
+
+        @Override
+        public void execute(final CommandSender sender, final String[] args) {
+            plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    if (args.length == 0) {
+                        sender.sendMessage(new ComponentBuilder("Usage: /ipplayers <address|player> [subnet]").color(ChatColor.RED).create());
+                        return;
+                    }
+                    InetAddress address;
+                    if (InetAddresses.isInetAddress(args[0])) {
+                        address = InetAddresses.forString(args[0]);
+                    } else {
+                        UUID uuid = resolveUuid(plugin, args[0]);
+                        address = uuid == null ? null : RedisBungee.getApi().getPlayerIp(uuid);
+                        if (address == null) {
+                            sender.sendMessage(PLAYER_NOT_FOUND);
+                            return;
+                        }
+                    }
+                    boolean subnet = args.length > 1 && args[1].equals("subnet");
+                    Map<UUID, Long> seen = subnet ? RedisBungee.getApi().getPlayersBySubnet(address) : RedisBungee.getApi().getPlayersByIp(address);
+                    Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(seen.keySet());
+
+                    SimpleDateFormat format = new SimpleDateFormat();
+                    List<String> entries = new ArrayList<>(seen.size());
+                    for (Map.Entry<UUID, Long> entry : seen.entrySet()) {
+                        String name = names.get(entry.getKey());
+                        entries.add((name != null ? name : entry.getKey().toString()) + " (" + format.format(entry.getValue()) + ")");
+                    }
+
+                    TextComponent header = new TextComponent();
+                    header.setColor(ChatColor.YELLOW);
+                    header.setText(playerPlural(seen.size()) + " known from " + (subnet ? "the subnet of " : "") + address.getHostAddress() + ": ");
+                    TextComponent list = new TextComponent();
+                    list.setColor(ChatColor.WHITE);
+                    list.setText(Joiner.on(", ").join(entries));
+                    sender.sendMessage(header, list);
+                }
+            });
+        }
+
+        @Override
+        public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+            return completePlayers(args);
+        }
+    }
+
+    public static class PlayerProxyCommand extends Command implements TabExecutor {
         private final RedisBungee plugin;
 
         PlayerProxyCommand(RedisBungee plugin) {
@@ -208,7 +432,7 @@ class RedisBungeeCommands {
                 @Override
                 public void run() {
                     if (args.length > 0) {
-                        UUID uuid = plugin.getUuidTranslator().getTranslatedUuid(args[0], true);
+                        UUID uuid = resolveUuid(plugin, args[0]);
                         if (uuid == null) {
                             sender.sendMessage(PLAYER_NOT_FOUND);
                             return;
@@ -228,6 +452,11 @@ class RedisBungeeCommands {
                 }
             });
         }
+
+        @Override
+        public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+            return completePlayers(args);
+        }
     }
 
     public static class SendToAll extends Command {
@@ -239,8 +468,41 @@ class RedisBungeeCommands {
         }
 
         @Override
-        public void execute(CommandSender sender, String[] args) {
-            if (args.length > 0) {
+        public void execute(final CommandSender sender, String[] args) {
+            if (args.length > 1 && args[0].equals("-ack")) {
+                final String command = Joiner.on(" ").skipNulls().join(Arrays.copyOfRange(args, 1, args.length));
+                final List<String> proxies = RedisBungee.getApi().getAllServers();
+                sender.sendMessage(new ComponentBuilder("Sending the command /" + command + " to " + proxies.size() + " proxies and waiting for them...").color(ChatColor.YELLOW).create());
+                ListenableFuture<Map<String, RpcOutcome<ProxyCommandResult>>> results = RedisBungee.getApi().sendAcknowledgedProxyCommand(command, ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                Futures.addCallback(results, new FutureCallback<Map<String, RpcOutcome<ProxyCommandResult>>>() {
+                    @Override
+                    public void onSuccess(Map<String, RpcOutcome<ProxyCommandResult>> results) {
+                        for (String proxy : proxies) {
+                            RpcOutcome<ProxyCommandResult> outcome = results.get(proxy);
+                            ProxyCommandResult result = outcome != null ? outcome.getResponse() : null;
+                            if (outcome == null) {
+                                sender.sendMessage(new ComponentBuilder("[" + proxy + "] left before the command was sent.").color(ChatColor.RED).create());
+                            } else if (outcome.isTimedOut()) {
+                                sender.sendMessage(new ComponentBuilder("[" + proxy + "] did not answer within " + ACK_TIMEOUT_SECONDS + " seconds.").color(ChatColor.RED).create());
+                            } else if (!outcome.isSuccess()) {
+                                sender.sendMessage(new ComponentBuilder("[" + proxy + "] failed: " + outcome.getError().getMessage()).color(ChatColor.RED).create());
+                            } else if (!result.isDispatched()) {
+                                sender.sendMessage(new ComponentBuilder("[" + proxy + "] does not know this command.").color(ChatColor.RED).create());
+                            } else {
+                                sender.sendMessage(new ComponentBuilder("[" + proxy + "] ran in " + result.getDurationMillis() + "ms.").color(ChatColor.GREEN).create());
+                                for (String line : result.getOutput()) {
+                                    sender.sendMessage(new ComponentBuilder("  " + line).color(ChatColor.GRAY).create());
+                                }
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        sender.sendMessage(new ComponentBuilder("Unable to send the command: " + throwable.getMessage()).color(ChatColor.RED).create());
+                    }
+                }, MoreExecutors.directExecutor());
+            } else if (args.length > 0) {
                 String command = Joiner.on(" ").skipNulls().join(args);
                 RedisBungee.getApi().sendProxyCommand(command);
                 TextComponent message = new TextComponent();
@@ -298,7 +560,7 @@ class RedisBungeeCommands {
                 @Override
                 public void run() {
                     String proxy = args.length >= 1 ? args[0] : RedisBungee.getConfiguration().getServerId();
-                    if (!plugin.getServerIds().contains(proxy)) {
+                    if (!plugin.isServerId(proxy)) {
                         sender.sendMessage(new ComponentBuilder(proxy + " is not a valid proxy. See /serverids for valid proxies.").color(ChatColor.RED).create());
                         return;
                     }
@@ -306,30 +568,48 @@ class RedisBungeeCommands {
                     BaseComponent[] playersOnline = new ComponentBuilder("").color(ChatColor.YELLOW)
                             .append(playerPlural(players.size()) + " currently on proxy " + proxy + ".").create();
                     if (args.length >= 2 && args[1].equals("showall")) {
-                        Multimap<String, UUID> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
-                        Multimap<String, String> human = HashMultimap.create();
-                        for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
-                            if (players.contains(entry.getValue())) {
-                                human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
-                            }
-                        }
-                        for (String server : new TreeSet<>(human.keySet())) {
-                            TextComponent serverName = new TextComponent();
-                            serverName.setColor(ChatColor.RED);
-                            serverName.setText("[" + server + "] ");
-                            TextComponent serverCount = new TextComponent();
-                            serverCount.setColor(ChatColor.YELLOW);
-                            serverCount.setText("(" + human.get(server).size() + "): ");
-                            TextComponent serverPlayers = new TextComponent();
-                            serverPlayers.setColor(ChatColor.WHITE);
-                            serverPlayers.setText(Joiner.on(", ").join(human.get(server)));
-                            sender.sendMessage(serverName, serverCount, serverPlayers);
-                        }
+                        sendPage(sender, serversToPlayers(plugin, null, proxy), parsePage(args, 2), ChatColor.RED, "/plist " + proxy + " showall ");
                         sender.sendMessage(playersOnline);
+                    } else if (args.length >= 3 && args[1].equals("server")) {
+                        sendPage(sender, serversToPlayers(plugin, args[2], proxy), parsePage(args, 3), ChatColor.RED, "/plist " + proxy + " server " + args[2] + " ");
                     } else {
                         sender.sendMessage(playersOnline);
-                        sender.sendMessage(new ComponentBuilder("To see all players online, use /plist " + proxy + " showall.").color(ChatColor.YELLOW).create());
+                        sender.sendMessage(new ComponentBuilder("To see all players online, use /plist " + proxy + " showall [page], or /plist " + proxy + " server <server> [page] for one server.").color(ChatColor.YELLOW).create());
+                    }
+                }
+            });
+        }
+    }
+
+    public static class ConvertUuidsCommand extends Command {
+        private final RedisBungee plugin;
+
+        ConvertUuidsCommand(RedisBungee plugin) {
+            super("rconvertuuids", "redisbungee.command.convertuuids");
+            this.plugin = plugin;
+        }
+
+        @Override
+        public void execute(final CommandSender sender, final String[] args) {
+            if (args.length == 0 || !(args[0].equals("binary") || args[0].equals("string"))) {
+                sender.sendMessage(new ComponentBuilder("Usage: /rconvertuuids <binary|string>").color(ChatColor.RED).create());
+                return;
+            }
+            final boolean toBinary = args[0].equals("binary");
+            sender.sendMessage(new ComponentBuilder("Converting stored players to the " + args[0] + " UUID format...").color(ChatColor.YELLOW).create());
+            plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    int converted;
+                    try (Jedis jedis = plugin.getBulkPool().getResource()) {
+                        converted = RedisUtil.convertPlayerKeys(jedis, plugin.getLuaManager(), jedis.hkeys("heartbeats"), toBinary);
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.SEVERE, "Unable to convert stored players", e);
+                        sender.sendMessage(new ComponentBuilder("Unable to convert stored players, see the console for details.").color(ChatColor.RED).create());
+                        return;
                     }
+                    sender.sendMessage(new ComponentBuilder("Converted " + converted + " entries. Set binary-uuids to " + toBinary +
+                            " on all proxies and restart them.").color(ChatColor.GREEN).create());
                 }
             });
         }
@@ -345,12 +625,35 @@ class RedisBungeeCommands {
 
         @Override
         public void execute(final CommandSender sender, final String[] args) {
-            TextComponent poolActiveStat = new TextComponent("Currently active pool objects: " + plugin.getPool().getNumActive());
-            TextComponent poolIdleStat = new TextComponent("Currently idle pool objects: " + plugin.getPool().getNumIdle());
-            TextComponent poolWaitingStat = new TextComponent("Waiting on free objects: " + plugin.getPool().getNumWaiters());
-            sender.sendMessage(poolActiveStat);
-            sender.sendMessage(poolIdleStat);
-            sender.sendMessage(poolWaitingStat);
+            for (AdaptiveJedisPool pool : plugin.getPools()) {
+                sender.sendMessage(new TextComponent(String.format("Pool %s: %d/%d active, %d idle, %d waiting, %dms mean / %dms max wait, grown %d times",
+                        pool.getName(), pool.getNumActive(), pool.getMaxTotal(), pool.getNumIdle(), pool.getNumWaiters(),
+                        pool.getMeanBorrowWaitTimeMillis(), pool.getMaxBorrowWaitTimeMillis(), pool.getTimesGrown())));
+            }
+            CacheStats stats = plugin.getDataManager().getCacheStats();
+            TextComponent cacheStat = new TextComponent(String.format("Player cache: %d entries, %.1f%% hit rate, %d evictions",
+                    plugin.getDataManager().getCacheSize(), stats.hitRate() * 100, stats.evictionCount()));
+            sender.sendMessage(cacheStat);
+            LoginAdmission admission = plugin.getLoginAdmission();
+            sender.sendMessage(new TextComponent(String.format("Logins: %s, %d in flight, %d queued, %.1fms mean Redis time, %d admitted, %d shed, %d failed fast",
+                    admission.getState(), admission.getInFlight(), admission.getQueueLength(), admission.getLatencyMillis(),
+                    admission.getAdmittedCount(), admission.getShedCount(), admission.getFailedFastCount())));
+            DegradedMode degradedMode = plugin.getDegradedMode();
+            if (degradedMode.isActive()) {
+                sender.sendMessage(new ComponentBuilder("Redis is unreachable, serving from local state with " +
+                        degradedMode.getJournalSize() + " writes waiting to be replayed.").color(ChatColor.RED).create());
+            }
+            ProxyRpc rpc = plugin.getRpc();
+            sender.sendMessage(new TextComponent(String.format("RPC: %d calls, %d pending, %d failed, %d timed out, %.1fms mean / %.1fms max latency",
+                    rpc.getCallCount(), rpc.getPendingCount(), rpc.getFailureCount(), rpc.getTimeoutCount(),
+                    rpc.getMeanLatencyMillis(), rpc.getMaxLatencyMillis())));
+            LuaManager luaManager = plugin.getLuaManager();
+            sender.sendMessage(new TextComponent("Lua scripts reloaded " + luaManager.getReloadCount() + " times after Redis lost them"));
+            for (LuaManager.Script script : luaManager.getScripts()) {
+                sender.sendMessage(new TextComponent(String.format("Script %s: %d calls (%d pipelined), %.1fms mean / %.1fms max latency",
+                        script.getName(), script.getCallCount(), script.getPipelinedCallCount(),
+                        script.getMeanMillis(), script.getMaxMillis())));
+            }
         }
     }
 }
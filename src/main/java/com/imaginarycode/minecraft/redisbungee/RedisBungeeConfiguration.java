@@ -18,6 +18,42 @@ public class RedisBungeeConfiguration {
     private final boolean registerBungeeCommands;
     @Getter
     private final List<InetAddress> exemptAddresses;
+    @Getter
+    private final boolean keyspaceNotifications;
+    @Getter
+    private final boolean useRedisStreams;
+    @Getter
+    private final int streamMaxLength;
+    @Getter
+    private final int streamBatchSize;
+    @Getter
+    private final boolean binaryUuids;
+    @Getter
+    private final String playerCacheSpec;
+    @Getter
+    private final int ipHistoryDays;
+    @Getter
+    private final boolean ipHistorySubnets;
+    @Getter
+    private final int activityHistoryDays;
+    @Getter
+    private final int statisticsRetentionDays;
+    @Getter
+    private final int loginMaxInFlight;
+    @Getter
+    private final int loginMaxQueued;
+    @Getter
+    private final int loginLatencyThresholdMs;
+    @Getter
+    private final int loginQueueTimeoutMs;
+    @Getter
+    private final boolean degradedMode;
+    @Getter
+    private final int degradedJournalSize;
+    @Getter
+    private final int degradedJournalFileMb;
+    @Getter
+    private final int serverChangeCoalesceMs;
 
     public RedisBungeeConfiguration(JedisPool pool, Configuration configuration) {
         this.pool = pool;
@@ -32,5 +68,23 @@ public class RedisBungeeConfiguration {
         }
 
         this.exemptAddresses = addressBuilder.build();
+        this.keyspaceNotifications = configuration.getBoolean("keyspace-notifications", false);
+        this.useRedisStreams = configuration.getBoolean("use-redis-streams", false);
+        this.streamMaxLength = configuration.getInt("stream-max-length", 10000);
+        this.streamBatchSize = configuration.getInt("stream-batch-size", 500);
+        this.binaryUuids = configuration.getBoolean("binary-uuids", false);
+        this.playerCacheSpec = configuration.getString("player-cache-spec", "maximumSize=10000,expireAfterWrite=1h");
+        this.ipHistoryDays = configuration.getInt("ip-history-days", 30);
+        this.ipHistorySubnets = configuration.getBoolean("ip-history-subnets", true);
+        this.activityHistoryDays = configuration.getInt("activity-history-days", 30);
+        this.statisticsRetentionDays = configuration.getInt("statistics-retention-days", 7);
+        this.loginMaxInFlight = configuration.getInt("login-max-in-flight", 32);
+        this.loginMaxQueued = configuration.getInt("login-max-queued", 256);
+        this.loginLatencyThresholdMs = configuration.getInt("login-latency-threshold-ms", 250);
+        this.loginQueueTimeoutMs = configuration.getInt("login-queue-timeout-ms", 10000);
+        this.degradedMode = configuration.getBoolean("degraded-mode", true);
+        this.degradedJournalSize = configuration.getInt("degraded-journal-size", 10000);
+        this.degradedJournalFileMb = configuration.getInt("degraded-journal-file-mb", 16);
+        this.serverChangeCoalesceMs = configuration.getInt("server-change-coalesce-ms", 250);
     }
 }
@@ -1,14 +1,15 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
-import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
-import com.imaginarycode.minecraft.redisbungee.util.RedisCallable;
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
 import lombok.AllArgsConstructor;
 import net.md_5.bungee.api.AbstractReconnectHandler;
 import net.md_5.bungee.api.ChatColor;
@@ -27,6 +28,7 @@ import redis.clients.jedis.Pipeline;
 
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @AllArgsConstructor
 public class RedisBungeeListener implements Listener {
@@ -42,91 +44,99 @@ public class RedisBungeeListener implements Listener {
                     .create();
     private final RedisBungee plugin;
     private final List<InetAddress> exemptAddresses;
+    // The logins that were only checked against local state, so their players still need to be written to Redis.
+    // Logins that are cancelled after the check never get to PostLoginEvent, so they are forgotten after a while.
+    private final Cache<UUID, Boolean> checkedLocally = CacheBuilder.newBuilder()
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .build();
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onLogin(final LoginEvent event) {
         event.registerIntent(plugin);
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
+        plugin.getLoginAdmission().admit(event, new LoginAdmission.LoginTask() {
             @Override
-            protected Void call(Jedis jedis) {
-                try {
-                    if (event.isCancelled()) {
-                        return null;
-                    }
-
-                    // We make sure they aren't trying to use an existing player's name.
-                    // This is problematic for online-mode servers as they always disconnect old clients.
-                    if (plugin.getProxy().getConfig().isOnlineMode()) {
-                        ProxiedPlayer player = plugin.getProxy().getPlayer(event.getConnection().getName());
+            public void run(Jedis jedis) {
+                if (isUsingOnlinePlayersName(event))
+                    return;
 
-                        if (player != null) {
-                            event.setCancelled(true);
-                            // TODO: Make it accept a BaseComponent[] like everything else.
-                            event.setCancelReason(TextComponent.toLegacyText(ONLINE_MODE_RECONNECT));
-                            return null;
-                        }
+                for (String s : plugin.getServerIds()) {
+                    if (jedis.sismember(PlayerKeys.usersOnline(s), PlayerKeys.member(event.getConnection().getUniqueId()))) {
+                        event.setCancelled(true);
+                        // TODO: Make it accept a BaseComponent[] like everything else.
+                        event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
+                        return;
                     }
+                }
 
-                    for (String s : plugin.getServerIds()) {
-                        if (jedis.sismember("proxy:" + s + ":usersOnline", event.getConnection().getUniqueId().toString())) {
-                            event.setCancelled(true);
-                            // TODO: Make it accept a BaseComponent[] like everything else.
-                            event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
-                            return null;
-                        }
-                    }
+                Pipeline pipeline = jedis.pipelined();
+                plugin.getUuidTranslator().persistInfo(event.getConnection().getName(), event.getConnection().getUniqueId(), pipeline);
+                RedisUtil.createPlayer(event.getConnection(), pipeline, false);
+                // We're not publishing, the API says we only publish at PostLoginEvent time.
+                plugin.getLuaManager().sync(jedis, pipeline);
+                checkedLocally.invalidate(event.getConnection().getUniqueId());
+            }
 
-                    Pipeline pipeline = jedis.pipelined();
-                    plugin.getUuidTranslator().persistInfo(event.getConnection().getName(), event.getConnection().getUniqueId(), pipeline);
-                    RedisUtil.createPlayer(event.getConnection(), pipeline, false);
-                    // We're not publishing, the API says we only publish at PostLoginEvent time.
-                    pipeline.sync();
+            @Override
+            public void runLocally() {
+                if (isUsingOnlinePlayersName(event))
+                    return;
 
-                    return null;
-                } finally {
-                    event.completeIntent(plugin);
+                // The player is written to Redis when the journal is replayed.
+                if (plugin.getDataManager().getPlayerIndex().get(event.getConnection().getUniqueId()) != null) {
+                    event.setCancelled(true);
+                    // TODO: Make it accept a BaseComponent[] like everything else.
+                    event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
+                    return;
                 }
+                checkedLocally.put(event.getConnection().getUniqueId(), Boolean.TRUE);
             }
         });
     }
 
+    private boolean isUsingOnlinePlayersName(LoginEvent event) {
+        // We make sure they aren't trying to use an existing player's name.
+        // This is problematic for online-mode servers as they always disconnect old clients.
+        if (plugin.getProxy().getConfig().isOnlineMode()) {
+            ProxiedPlayer player = plugin.getProxy().getPlayer(event.getConnection().getName());
+
+            if (player != null) {
+                event.setCancelled(true);
+                // TODO: Make it accept a BaseComponent[] like everything else.
+                event.setCancelReason(TextComponent.toLegacyText(ONLINE_MODE_RECONNECT));
+                return true;
+            }
+        }
+        return false;
+    }
+
     @EventHandler
     public void onPostLogin(final PostLoginEvent event) {
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
-            @Override
-            protected Void call(Jedis jedis) {
-                jedis.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
-                        new DataManager.LoginPayload(event.getPlayer().getAddress().getAddress()))));
-                return null;
-            }
-        });
+        UUID uuid = event.getPlayer().getUniqueId();
+        boolean written = checkedLocally.asMap().remove(uuid) == null;
+        write(DegradedMode.Mutation.join(uuid, event.getPlayer().getName(), event.getPlayer().getAddress().getAddress(), written));
     }
 
     @EventHandler
     public void onPlayerDisconnect(final PlayerDisconnectEvent event) {
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
-            @Override
-            protected Void call(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                RedisUtil.cleanUpPlayer(event.getPlayer().getUniqueId().toString(), pipeline);
-                pipeline.sync();
-                return null;
-            }
-        });
+        plugin.getServerChanges().playerLeft(event.getPlayer().getUniqueId());
+        write(DegradedMode.Mutation.leave(event.getPlayer().getUniqueId()));
     }
 
     @EventHandler
     public void onServerChange(final ServerConnectedEvent event) {
         final String currentServer = event.getPlayer().getServer() == null ? null : event.getPlayer().getServer().getInfo().getName();
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
+        DegradedMode.Mutation change = plugin.getServerChanges().offer(
+                DegradedMode.Mutation.serverChange(event.getPlayer().getUniqueId(), event.getServer().getInfo().getName(), currentServer));
+        if (change != null) {
+            write(change);
+        }
+    }
+
+    private void write(final DegradedMode.Mutation mutation) {
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
             @Override
-            protected Void call(Jedis jedis) {
-                jedis.hset("player:" + event.getPlayer().getUniqueId().toString(), "server", event.getServer().getInfo().getName());
-                jedis.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.SERVER_CHANGE,
-                        new DataManager.ServerChangePayload(event.getServer().getInfo().getName(), currentServer))));
-                return null;
+            public void run() {
+                plugin.getDegradedMode().write(mutation);
             }
         });
     }
@@ -277,15 +287,4 @@ public class RedisBungeeListener implements Listener {
             output.writeUTF(o.toString());
         }
     }
-
-    @EventHandler
-    public void onPubSubMessage(PubSubMessageEvent event) {
-        if (event.getChannel().equals("redisbungee-allservers") || event.getChannel().equals("redisbungee-" + RedisBungee.getApi().getServerId())) {
-            String message = event.getMessage();
-            if (message.startsWith("/"))
-                message = message.substring(1);
-            plugin.getLogger().info("Invoking command via PubSub: /" + message);
-            plugin.getProxy().getPluginManager().dispatchCommand(RedisBungeeCommandSender.instance, message);
-        }
-    }
 }
@@ -1,60 +1,249 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import net.md_5.bungee.api.connection.PendingConnection;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @VisibleForTesting
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class RedisUtil {
     protected static void createPlayer(ProxiedPlayer player, Pipeline pipeline, boolean fireEvent) {
-        createPlayer(player.getPendingConnection(), pipeline, fireEvent);
-        if (player.getServer() != null)
-            pipeline.hset("player:" + player.getUniqueId().toString(), "server", player.getServer().getInfo().getName());
+        PendingConnection connection = player.getPendingConnection();
+        createPlayer(connection.getUniqueId(), connection.getName(), connection.getAddress().getAddress(),
+                player.getServer() != null ? player.getServer().getInfo().getName() : null, pipeline, fireEvent);
     }
 
     protected static void createPlayer(PendingConnection connection, Pipeline pipeline, boolean fireEvent) {
-        Map<String, String> playerData = new HashMap<>(4);
-        playerData.put("online", "0");
-        playerData.put("ip", connection.getAddress().getAddress().getHostAddress());
-        playerData.put("proxy", RedisBungee.getConfiguration().getServerId());
-
-        pipeline.sadd("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", connection.getUniqueId().toString());
-        pipeline.hmset("player:" + connection.getUniqueId().toString(), playerData);
-
-        if (fireEvent) {
-            pipeline.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                    connection.getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
-                    new DataManager.LoginPayload(connection.getAddress().getAddress()))));
+        createPlayer(connection.getUniqueId(), connection.getName(), connection.getAddress().getAddress(), pipeline, fireEvent);
+    }
+
+    static void createPlayer(UUID uuid, String name, InetAddress address, Pipeline pipeline, boolean fireEvent) {
+        createPlayer(uuid, name, address, null, pipeline, fireEvent);
+    }
+
+    /**
+     * Marks a player as online on our proxy. The player itself is written by a script that checks our fencing token,
+     * while the address history, activity index and statistics, which only record that the player was seen, are
+     * written directly.
+     */
+    private static void createPlayer(UUID uuid, String name, InetAddress address, String server, Pipeline pipeline, boolean fireEvent) {
+        // Logins write the player without an event, as the API says joins are only published at PostLoginEvent time.
+        String message = fireEvent ? RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+                uuid, DataManager.DataManagerMessage.Action.JOIN,
+                new DataManager.LoginPayload(address, name))) : "";
+        RedisBungee.getEventStream().publishWith("player_join", pipeline,
+                ImmutableList.of(PlayerKeys.usersOnline(RedisBungee.getApi().getServerId()), PlayerKeys.player(uuid)),
+                ImmutableList.of(PlayerKeys.member(uuid), SafeEncoder.encode(name), SafeEncoder.encode(address.getHostAddress()),
+                        SafeEncoder.encode(RedisBungee.getConfiguration().getServerId()), SafeEncoder.encode(server != null ? server : "")),
+                message);
+
+        int historyDays = RedisBungee.getConfiguration().getIpHistoryDays();
+        if (historyDays > 0) {
+            byte[] member = PlayerKeys.member(uuid);
+            long now = System.currentTimeMillis();
+            recordAddress(pipeline, PlayerKeys.ip(address), member, now, historyDays);
+            if (RedisBungee.getConfiguration().isIpHistorySubnets())
+                recordAddress(pipeline, PlayerKeys.subnet(address), member, now, historyDays);
         }
+        recordActivity(pipeline, uuid, System.currentTimeMillis());
+        NetworkStatistics.recordLogin(pipeline, uuid);
     }
 
-    public static void cleanUpPlayer(String player, Jedis rsc) {
-        rsc.srem("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server",  "ip", "proxy");
-        long timestamp = System.currentTimeMillis();
-        rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-        rsc.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE,
-                new DataManager.LogoutPayload(timestamp))));
+    static void changeServer(UUID player, String server, String previousServer, Pipeline pipeline) {
+        RedisBungee.getEventStream().publishWith("player_server_change", pipeline,
+                ImmutableList.of(PlayerKeys.usersOnline(RedisBungee.getApi().getServerId()), PlayerKeys.player(player)),
+                ImmutableList.of(PlayerKeys.member(player), SafeEncoder.encode(server)),
+                RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+                        player, DataManager.DataManagerMessage.Action.SERVER_CHANGE,
+                        new DataManager.ServerChangePayload(server, previousServer))));
+    }
+
+    /**
+     * Records that a player was seen from an address, and drops the players that were last seen from it longer ago
+     * than the history is kept for.
+     */
+    private static void recordAddress(Pipeline pipeline, byte[] key, byte[] member, long now, int historyDays) {
+        pipeline.zadd(key, now, member);
+        pipeline.zremrangeByScore(key, 0, now - TimeUnit.DAYS.toMillis(historyDays));
+        pipeline.expire(key, (int) TimeUnit.DAYS.toSeconds(historyDays));
+    }
+
+    /**
+     * Moves a player to the given time in the activity index, and drops the players that were last seen longer ago
+     * than the index is kept for.
+     */
+    private static void recordActivity(Pipeline pipeline, UUID player, long timestamp) {
+        int historyDays = RedisBungee.getConfiguration().getActivityHistoryDays();
+        if (historyDays > 0) {
+            pipeline.zadd(PlayerKeys.LAST_SEEN, timestamp, PlayerKeys.member(player));
+            pipeline.zremrangeByScore(PlayerKeys.LAST_SEEN, 0, timestamp - TimeUnit.DAYS.toMillis(historyDays));
+        }
+    }
+
+    private static List<byte[]> leaveKeys(UUID player) {
+        return ImmutableList.of(PlayerKeys.usersOnline(RedisBungee.getApi().getServerId()), PlayerKeys.player(player),
+                PlayerKeys.LAST_SEEN);
+    }
+
+    private static List<byte[]> leaveArgs(UUID player, long timestamp) {
+        int historyDays = RedisBungee.getConfiguration().getActivityHistoryDays();
+        String cutoff = historyDays > 0 ? String.valueOf(timestamp - TimeUnit.DAYS.toMillis(historyDays)) : "";
+        return ImmutableList.of(PlayerKeys.member(player), SafeEncoder.encode(String.valueOf(timestamp)), SafeEncoder.encode(cutoff));
+    }
+
+    private static String leaveMessage(UUID player, long timestamp) {
+        return RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+                player, DataManager.DataManagerMessage.Action.LEAVE,
+                new DataManager.LogoutPayload(timestamp)));
     }
 
-    public static void cleanUpPlayer(String player, Pipeline rsc) {
-        rsc.srem("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server", "ip", "proxy");
+    public static void cleanUpPlayer(UUID player, Jedis rsc) {
         long timestamp = System.currentTimeMillis();
-        rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-        rsc.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE,
-                new DataManager.LogoutPayload(timestamp))));
+        RedisBungee.getEventStream().publishWith("player_leave", rsc, leaveKeys(player), leaveArgs(player, timestamp),
+                leaveMessage(player, timestamp));
+    }
+
+    public static void cleanUpPlayer(UUID player, Pipeline rsc) {
+        cleanUpPlayer(player, System.currentTimeMillis(), rsc);
+    }
+
+    static void cleanUpPlayer(UUID player, long timestamp, Pipeline rsc) {
+        RedisBungee.getEventStream().publishWith("player_leave", rsc, leaveKeys(player), leaveArgs(player, timestamp),
+                leaveMessage(player, timestamp));
+    }
+
+    /**
+     * Converts all player keys, online sets and player indexes (the address history and the activity index) to the
+     * binary or the string UUID format. Entries already in the requested format are left alone, so this may be run
+     * more than once.
+     *
+     * @param jedis      the connection to use
+     * @param luaManager the scripts used to convert the indexes
+     * @param proxies    the proxies whose online sets should be converted
+     * @param toBinary   whether to convert to the binary format
+     * @return the number of keys and set members converted
+     */
+    public static int convertPlayerKeys(Jedis jedis, LuaManager luaManager, Collection<String> proxies, boolean toBinary) {
+        int converted = 0;
+
+        for (String proxy : proxies) {
+            byte[] setKey = PlayerKeys.usersOnline(proxy);
+            Pipeline pipeline = jedis.pipelined();
+            for (byte[] member : jedis.smembers(setKey)) {
+                if (PlayerKeys.isBinaryMember(member) == toBinary)
+                    continue;
+                UUID uuid;
+                try {
+                    uuid = PlayerKeys.fromMember(member);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                pipeline.srem(setKey, member);
+                pipeline.sadd(setKey, PlayerKeys.member(uuid, toBinary));
+                converted++;
+            }
+            pipeline.sync();
+        }
+
+        ScanParams params = new ScanParams().match("player:*").count(1000);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        do {
+            ScanResult<byte[]> result = jedis.scan(cursor, params);
+            cursor = result.getCursorAsBytes();
+
+            List<byte[]> oldKeys = new ArrayList<>();
+            List<Response<Long>> renamed = new ArrayList<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (byte[] key : result.getResult()) {
+                UUID uuid;
+                try {
+                    uuid = PlayerKeys.fromPlayerKey(key);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                byte[] newKey = PlayerKeys.player(uuid, toBinary);
+                if (Arrays.equals(key, newKey))
+                    continue;
+                oldKeys.add(key);
+                renamed.add(pipeline.renamenx(key, newKey));
+            }
+            pipeline.sync();
+
+            // If the new key already exists, it was written after the switch and is more recent.
+            pipeline = jedis.pipelined();
+            for (int i = 0; i < oldKeys.size(); i++) {
+                if (renamed.get(i).get() == 0) {
+                    pipeline.del(oldKeys.get(i));
+                }
+                converted++;
+            }
+            pipeline.sync();
+        } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+
+        LuaManager.Script script = luaManager.getScript("zset_convert_member");
+        for (String pattern : ImmutableList.of("ip:*", "subnet:*")) {
+            params = new ScanParams().match(pattern).count(1000);
+            cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                ScanResult<byte[]> result = jedis.scan(cursor, params);
+                cursor = result.getCursorAsBytes();
+                for (byte[] key : result.getResult()) {
+                    if (!jedis.type(key).equals("zset"))
+                        continue; // Not one of ours.
+                    converted += convertSortedSet(jedis, luaManager, script, key, toBinary);
+                }
+            } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+        }
+        converted += convertSortedSet(jedis, luaManager, script, PlayerKeys.LAST_SEEN, toBinary);
+
+        return converted;
+    }
+
+    /**
+     * Converts the members of a sorted set of players. A player that is in the set in both formats keeps the most
+     * recent of the two scores.
+     */
+    private static int convertSortedSet(Jedis jedis, LuaManager luaManager, LuaManager.Script script, byte[] key, boolean toBinary) {
+        int converted = 0;
+        ScanParams params = new ScanParams().count(1000);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        do {
+            ScanResult<Tuple> result = jedis.zscan(key, cursor, params);
+            cursor = result.getCursorAsBytes();
+
+            Pipeline pipeline = jedis.pipelined();
+            for (Tuple tuple : result.getResult()) {
+                byte[] member = tuple.getBinaryElement();
+                if (PlayerKeys.isBinaryMember(member) == toBinary)
+                    continue;
+                UUID uuid;
+                try {
+                    uuid = PlayerKeys.fromMember(member);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                script.evalBinary(pipeline, ImmutableList.of(key), ImmutableList.of(member, PlayerKeys.member(uuid, toBinary)));
+                converted++;
+            }
+            luaManager.sync(jedis, pipeline);
+        } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+        return converted;
     }
 
     public static boolean canUseLua(String redisVersion) {
@@ -0,0 +1,39 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class holds how a call to one proxy went, when calling every proxy at once.
+ *
+ * @param <R> the type of the response
+ * @see ProxyRpc#callAll(String, Object, Class, long, java.util.concurrent.TimeUnit)
+ * @since 0.5
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class RpcOutcome<R> {
+    /**
+     * The response, or null if the call failed.
+     */
+    private final R response;
+    /**
+     * Why the call failed, or null if it succeeded. A {@link TimeoutException} means the proxy did not answer in
+     * time; any other exception means it answered with an error, for example because it had no handler for the
+     * method, or that the call could not be sent.
+     */
+    private final Throwable error;
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public boolean isTimedOut() {
+        return error instanceof TimeoutException;
+    }
+}
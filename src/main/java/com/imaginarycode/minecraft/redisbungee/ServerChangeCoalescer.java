@@ -0,0 +1,102 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps players that bounce between servers from flooding Redis with writes and events.
+ * <p>
+ * The first server change of a player is written right away and opens a short window. Changes made during the
+ * window are merged into one, which is written when the window closes: the player ends up on the last server, coming
+ * from the server they were on before the window's first merged change. That write opens the next window.
+ *
+ * @since 0.5
+ */
+class ServerChangeCoalescer {
+    private final DegradedMode degradedMode;
+    private final ScheduledExecutorService timer;
+    private final long windowMillis;
+    // Guarded by itself.
+    private final Map<UUID, Window> windows = new HashMap<>();
+
+    /**
+     * @param degradedMode the writer of the merged server changes
+     * @param timer        the executor that writes them once their window closes
+     */
+    ServerChangeCoalescer(DegradedMode degradedMode, ScheduledExecutorService timer, int windowMillis) {
+        this.degradedMode = degradedMode;
+        this.timer = timer;
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+
+    /**
+     * Takes a server change, and returns it if it should be written right away. Otherwise it is written once the
+     * window of the player closes.
+     *
+     * @return the server change, or null if it was merged into the next write
+     */
+    DegradedMode.Mutation offer(DegradedMode.Mutation change) {
+        if (windowMillis == 0)
+            return change;
+
+        final UUID player = change.getPlayer();
+        long now = System.currentTimeMillis();
+        long delay;
+        synchronized (windows) {
+            Window window = windows.get(player);
+            if (window == null || now >= window.closesAt) {
+                windows.put(player, new Window(now + windowMillis));
+                return change;
+            }
+            if (window.pending != null) {
+                window.pending = DegradedMode.Mutation.serverChange(player, change.getServer(), window.pending.getPreviousServer());
+                return null;
+            }
+            window.pending = change;
+            delay = window.closesAt - now;
+        }
+
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(player);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return null;
+    }
+
+    private void flush(UUID player) {
+        DegradedMode.Mutation pending;
+        synchronized (windows) {
+            Window window = windows.get(player);
+            if (window == null || window.pending == null)
+                return; // The player left in the meantime.
+            pending = window.pending;
+            window.pending = null;
+            window.closesAt = System.currentTimeMillis() + windowMillis;
+        }
+        degradedMode.write(pending);
+    }
+
+    /**
+     * Forgets a player that left. A server change that was still waiting is dropped, as the player's server is
+     * cleared when they leave anyway.
+     */
+    void playerLeft(UUID player) {
+        synchronized (windows) {
+            windows.remove(player);
+        }
+    }
+
+    private static class Window {
+        private long closesAt;
+        private DegradedMode.Mutation pending;
+
+        Window(long closesAt) {
+            this.closesAt = closesAt;
+        }
+    }
+}
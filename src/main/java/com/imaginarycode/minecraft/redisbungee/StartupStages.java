@@ -0,0 +1,130 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Joiner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class runs the steps of starting the plugin concurrently, each once the steps it depends on are done, and
+ * keeps track of how long each of them took.
+ * <p>
+ * Steps run on the plugin's executor, as BungeeCord expects threads to be created through the scheduler. A step
+ * that failed fails every step that depends on it with the same exception.
+ *
+ * @since 0.5
+ */
+class StartupStages {
+    private final Logger logger;
+    private final Executor executor;
+    private final long started = System.nanoTime();
+    // Guarded by itself.
+    private final List<String> timings = new ArrayList<>();
+
+    StartupStages(Logger logger, Executor executor) {
+        this.logger = logger;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a step once the given steps are done.
+     */
+    <T> Stage<T> submit(final String name, final Callable<T> task, final Stage<?>... after) {
+        FutureTask<T> future = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                for (Stage<?> stage : after) {
+                    stage.get();
+                }
+                long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    record(name, start);
+                }
+            }
+        });
+        executor.execute(future);
+        return new Stage<>(name, future);
+    }
+
+    Stage<Void> submit(String name, final Runnable task, Stage<?>... after) {
+        return submit(name, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                task.run();
+                return null;
+            }
+        }, after);
+    }
+
+    private void record(String name, long start) {
+        long now = System.nanoTime();
+        String timing = name + " " + TimeUnit.NANOSECONDS.toMillis(now - start) + "ms (done at " +
+                TimeUnit.NANOSECONDS.toMillis(now - started) + "ms)";
+        synchronized (timings) {
+            timings.add(timing);
+        }
+    }
+
+    /**
+     * Logs how long each step that is done so far took.
+     */
+    void report(String what) {
+        String summary;
+        synchronized (timings) {
+            summary = Joiner.on(", ").join(timings);
+            timings.clear();
+        }
+        logger.info(what + " after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms: " + summary);
+    }
+
+    /**
+     * Logs how long each step took once the given steps are done.
+     */
+    void reportWhenDone(final String what, Stage<?>... after) {
+        submit("report", new Runnable() {
+            @Override
+            public void run() {
+                report(what);
+            }
+        }, after);
+    }
+
+    static class Stage<T> {
+        private final String name;
+        private final FutureTask<T> future;
+
+        private Stage(String name, FutureTask<T> future) {
+            this.name = name;
+            this.future = future;
+        }
+
+        /**
+         * Waits for the step to finish.
+         *
+         * @return the result of the step
+         */
+        T get() {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for " + name, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException("Startup step " + name + " failed", cause);
+            }
+        }
+    }
+}
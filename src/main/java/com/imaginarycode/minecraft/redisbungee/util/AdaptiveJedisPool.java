@@ -0,0 +1,78 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.logging.Logger;
+
+/**
+ * This class is a {@link JedisPool} that grows while callers keep waiting for connections, and shrinks back to its
+ * base size once the pressure is gone.
+ * <p>
+ * {@link #adapt()} should be called at a fixed rate. The pool grows by a quarter when callers were waiting (or the
+ * mean wait of the recent borrows was noticeable) on several checks in a row, up to its maximum size, and shrinks by
+ * one connection after a longer run of checks with less than half of the connections in use.
+ *
+ * @since 0.5
+ */
+public class AdaptiveJedisPool extends JedisPool {
+    private static final long PRESSURE_WAIT_MILLIS = 5;
+    private static final int CHECKS_BEFORE_GROWING = 3;
+    private static final int CHECKS_BEFORE_SHRINKING = 12;
+
+    private final String name;
+    private final Logger logger;
+    private final int baseSize;
+    private final int maxSize;
+    private int pressuredChecks = 0;
+    private int relaxedChecks = 0;
+    private volatile int timesGrown = 0;
+
+    public AdaptiveJedisPool(String name, Logger logger, JedisPoolConfig config, int maxSize,
+                             String host, int port, int timeout, String password) {
+        super(config, host, port, timeout, password);
+        this.name = name;
+        this.logger = logger;
+        this.baseSize = config.getMaxTotal();
+        this.maxSize = Math.max(maxSize, baseSize);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxTotal() {
+        return internalPool.getMaxTotal();
+    }
+
+    public int getTimesGrown() {
+        return timesGrown;
+    }
+
+    public synchronized void adapt() {
+        int size = internalPool.getMaxTotal();
+        boolean pressured = getNumWaiters() > 0 || getMeanBorrowWaitTimeMillis() >= PRESSURE_WAIT_MILLIS;
+
+        if (pressured) {
+            relaxedChecks = 0;
+            if (++pressuredChecks >= CHECKS_BEFORE_GROWING && size < maxSize) {
+                int grown = Math.min(maxSize, size + Math.max(1, size / 4));
+                resize(grown);
+                timesGrown++;
+                pressuredChecks = 0;
+                logger.info("Grew the " + name + " Redis pool from " + size + " to " + grown + " connections, as callers kept waiting for connections.");
+            }
+        } else {
+            pressuredChecks = 0;
+            if (getNumActive() < size / 2 && ++relaxedChecks >= CHECKS_BEFORE_SHRINKING && size > baseSize) {
+                resize(size - 1);
+                relaxedChecks = 0;
+            }
+        }
+    }
+
+    private void resize(int size) {
+        internalPool.setMaxTotal(size);
+        internalPool.setMaxIdle(size);
+    }
+}
@@ -0,0 +1,64 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * This class looks at top-level string fields of a serialized JSON object without parsing it.
+ * <p>
+ * It only understands compact JSON as written by Gson and does not unescape values, so callers must fall back to
+ * a full parse whenever a lookup returns {@code -1} or {@code false}.
+ *
+ * @since 0.5
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class JsonPeek {
+    /**
+     * Returns the index of the first character of a string value.
+     *
+     * @param json   the serialized JSON object
+     * @param needle the field name including its quotes, colon and opening quote, such as {@code "source":"}
+     * @return the index of the value, or -1 if the field could not be found
+     */
+    public static int valueIndex(String json, String needle) {
+        int index = json.indexOf(needle);
+        return index == -1 ? -1 : index + needle.length();
+    }
+
+    /**
+     * Checks whether a string value is equal to the expected value, without allocating.
+     *
+     * @param json     the serialized JSON object
+     * @param needle   the field name including its quotes, colon and opening quote, such as {@code "source":"}
+     * @param expected the expected value
+     * @return whether the field was found and is equal to the expected value
+     */
+    public static boolean valueEquals(String json, String needle, String expected) {
+        int index = valueIndex(json, needle);
+        if (index == -1)
+            return false;
+        int end = index + expected.length();
+        return end < json.length() && json.charAt(end) == '"' && json.regionMatches(index, expected, 0, expected.length());
+    }
+
+    /**
+     * Finds which of the given constants a string value is equal to, without allocating.
+     *
+     * @param json      the serialized JSON object
+     * @param needle    the field name including its quotes, colon and opening quote, such as {@code "action":"}
+     * @param constants the constants to compare against
+     * @return the matching constant, or null if none matched
+     */
+    public static <E extends Enum<E>> E valueOf(String json, String needle, E[] constants) {
+        int index = valueIndex(json, needle);
+        if (index == -1)
+            return null;
+        for (E constant : constants) {
+            String name = constant.name();
+            int end = index + name.length();
+            if (end < json.length() && json.charAt(end) == '"' && json.regionMatches(index, name, 0, name.length()))
+                return constant;
+        }
+        return null;
+    }
+}
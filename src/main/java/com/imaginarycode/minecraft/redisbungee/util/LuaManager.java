@@ -1,44 +1,316 @@
 package com.imaginarycode.minecraft.redisbungee.util;
 
+import com.google.common.collect.ImmutableList;
 import com.imaginarycode.minecraft.redisbungee.RedisBungee;
 import lombok.RequiredArgsConstructor;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.MultiKeyPipelineBase;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+/**
+ * This class keeps track of the Lua scripts used by RedisBungee.
+ * <p>
+ * Every script bundled in the plugin's {@code lua} directory is loaded at startup and looked up by its file name.
+ * Scripts are always called with EVALSHA, so they can be queued on a {@link redis.clients.jedis.Pipeline} or a
+ * {@link redis.clients.jedis.Transaction} like any other command. If Redis lost its scripts (after a restart or a
+ * {@code SCRIPT FLUSH}), a standalone call reloads all of them once and tries again. Pipelined calls can only fail,
+ * so pipelines that carry script calls are synced with {@link #sync(Jedis, Pipeline)}, which calls the scripts that
+ * failed again on their own. {@link #ensureLoaded(Jedis)} reloads the scripts ahead of time, so that this is rare.
+ * <p>
+ * Each script keeps track of how often it was called and how long its standalone calls took.
+ */
 @RequiredArgsConstructor
 public class LuaManager {
+    private static final String SCRIPT_DIRECTORY = "lua/";
+    private static final String SCRIPT_EXTENSION = ".lua";
+
     private final RedisBungee plugin;
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+    private final AtomicLong reloads = new AtomicLong();
+    // The script calls queued on each pipeline since it was last synced. Pipelines don't override equals, and are
+    // dropped once nothing else refers to them.
+    private final Map<MultiKeyPipelineBase, List<PipelinedCall>> pipelined =
+            Collections.synchronizedMap(new WeakHashMap<MultiKeyPipelineBase, List<PipelinedCall>>());
+
+    /**
+     * Loads every script bundled in the plugin.
+     */
+    public void loadBundledScripts() {
+        List<String> names = new ArrayList<>();
+        try (ZipFile jar = new ZipFile(plugin.getFile())) {
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String entry = entries.nextElement().getName();
+                if (entry.startsWith(SCRIPT_DIRECTORY) && entry.endsWith(SCRIPT_EXTENSION)) {
+                    names.add(entry.substring(SCRIPT_DIRECTORY.length(), entry.length() - SCRIPT_EXTENSION.length()));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to list the bundled Lua scripts", e);
+        }
+
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            for (String name : names) {
+                try (InputStream in = plugin.getResourceAsStream(SCRIPT_DIRECTORY + name + SCRIPT_EXTENSION)) {
+                    String script = IOUtil.readInputStreamAsString(in);
+                    scripts.put(name, new Script(name, script, jedis.scriptLoad(script)));
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to read Lua script " + name, e);
+                }
+            }
+        }
+    }
 
+    /**
+     * @param name the file name of a bundled script, without its extension
+     * @return the script
+     * @throws IllegalArgumentException if there is no such script
+     */
+    public Script getScript(String name) {
+        Script script = scripts.get(name);
+        if (script == null)
+            throw new IllegalArgumentException("No Lua script named " + name);
+        return script;
+    }
+
+    public Collection<Script> getScripts() {
+        return ImmutableList.copyOf(scripts.values());
+    }
+
+    /**
+     * @return how often the scripts had to be loaded into Redis again
+     */
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    /**
+     * Loads a script that is not bundled in the plugin. The script is not tracked by name.
+     */
     public Script createScript(String script) {
         try (Jedis jedis = plugin.getPool().getResource()) {
             String hash = jedis.scriptLoad(script);
-            return new Script(script, hash);
+            return new Script("inline", script, hash);
+        }
+    }
+
+    /**
+     * Loads the scripts into Redis again if it lost any of them. This is meant to be called at a fixed rate, so that
+     * pipelined calls don't keep failing for long after Redis restarted.
+     *
+     * @return whether the scripts were reloaded
+     */
+    public boolean ensureLoaded(Jedis jedis) {
+        List<Script> known = ImmutableList.copyOf(scripts.values());
+        if (known.isEmpty())
+            return false;
+        String[] hashes = new String[known.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = known.get(i).hashed;
+        }
+        if (!jedis.scriptExists(hashes).contains(false))
+            return false;
+        reload(jedis);
+        return true;
+    }
+
+    /**
+     * Syncs a pipeline, then calls the scripts queued on it that failed because Redis lost them again on the
+     * connection. Those calls then run after the rest of the pipeline rather than in their place.
+     *
+     * @param jedis    the connection the pipeline belongs to
+     * @param pipeline the pipeline to sync
+     * @return how many script calls had to be made again
+     */
+    public int sync(Jedis jedis, Pipeline pipeline) {
+        pipeline.sync();
+        List<PipelinedCall> calls = pipelined.remove(pipeline);
+        if (calls == null)
+            return 0;
+
+        int replayed = 0;
+        for (PipelinedCall call : calls) {
+            try {
+                call.response.get();
+            } catch (JedisDataException e) {
+                if (!isNoScript(e))
+                    continue; // Other errors were never retried.
+                call.script.reloadOnce(jedis);
+                call.script.evalBinary(jedis, call.keys, call.args);
+                replayed++;
+            }
+        }
+        if (replayed > 0)
+            plugin.getLogger().warning("Made " + replayed + " pipelined script calls again after Redis lost our Lua scripts.");
+        return replayed;
+    }
+
+    private void queued(MultiKeyPipelineBase pipeline, PipelinedCall call) {
+        synchronized (pipelined) {
+            List<PipelinedCall> calls = pipelined.get(pipeline);
+            if (calls == null) {
+                calls = new ArrayList<>();
+                pipelined.put(pipeline, calls);
+            }
+            calls.add(call);
+        }
+    }
+
+    private static List<byte[]> encode(List<String> values) {
+        List<byte[]> encoded = new ArrayList<>(values.size());
+        for (String value : values) {
+            encoded.add(SafeEncoder.encode(value));
         }
+        return encoded;
+    }
+
+    private void reload(Jedis jedis) {
+        reloads.incrementAndGet();
+        plugin.getLogger().log(Level.WARNING, "Redis lost our Lua scripts, reloading them.");
+        for (Script script : scripts.values()) {
+            jedis.scriptLoad(script.script);
+        }
+    }
+
+    private static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    @RequiredArgsConstructor
+    private static class PipelinedCall {
+        private final Script script;
+        private final List<byte[]> keys;
+        private final List<byte[]> args;
+        private final Response<Object> response;
     }
 
     @RequiredArgsConstructor
     public class Script {
+        private final String name;
         private final String script;
         private final String hashed;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong pipelinedCalls = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public String getName() {
+            return name;
+        }
 
         public Object eval(List<String> keys, List<String> args) {
-            Object data;
+            try (Jedis jedis = plugin.getPool().getResource()) {
+                return eval(jedis, keys, args);
+            }
+        }
 
+        public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+            long start = System.nanoTime();
+            try {
+                try {
+                    return jedis.evalsha(hashed, keys, args);
+                } catch (JedisDataException e) {
+                    if (!isNoScript(e))
+                        throw e;
+                    reloadOnce(jedis);
+                    return jedis.evalsha(hashed, keys, args);
+                }
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public Object evalBinary(List<byte[]> keys, List<byte[]> args) {
             try (Jedis jedis = plugin.getPool().getResource()) {
+                return evalBinary(jedis, keys, args);
+            }
+        }
+
+        public Object evalBinary(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+            long start = System.nanoTime();
+            try {
                 try {
-                    data = jedis.evalsha(hashed, keys, args);
+                    return jedis.evalsha(SafeEncoder.encode(hashed), keys, args);
                 } catch (JedisDataException e) {
-                    if (e.getMessage().startsWith("NOSCRIPT")) {
-                        data = jedis.eval(script, keys, args);
-                    } else {
+                    if (!isNoScript(e))
                         throw e;
-                    }
+                    reloadOnce(jedis);
+                    return jedis.evalsha(SafeEncoder.encode(hashed), keys, args);
                 }
+            } finally {
+                record(System.nanoTime() - start);
             }
+        }
+
+        /**
+         * Queues a call of the script on a pipeline or a transaction. If it fails because Redis lost the script, its
+         * response holds the error, and {@link #sync(Jedis, Pipeline)} calls the script again.
+         */
+        public Response<Object> eval(MultiKeyPipelineBase pipeline, List<String> keys, List<String> args) {
+            pipelinedCalls.incrementAndGet();
+            Response<Object> response = pipeline.evalsha(hashed, keys, args);
+            queued(pipeline, new PipelinedCall(this, encode(keys), encode(args), response));
+            return response;
+        }
+
+        public Response<Object> evalBinary(MultiKeyPipelineBase pipeline, List<byte[]> keys, List<byte[]> args) {
+            pipelinedCalls.incrementAndGet();
+            Response<Object> response = pipeline.evalsha(SafeEncoder.encode(hashed), keys, args);
+            queued(pipeline, new PipelinedCall(this, keys, args, response));
+            return response;
+        }
+
+        private void reloadOnce(Jedis jedis) {
+            // Another call may already have reloaded the scripts, in which case there is nothing left to do.
+            if (!jedis.scriptExists(hashed))
+                reload(jedis);
+        }
+
+        private void record(long nanos) {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Try again.
+            }
+        }
+
+        /**
+         * @return how often the script was called on its own, rather than on a pipeline
+         */
+        public long getCallCount() {
+            return calls.get();
+        }
+
+        public long getPipelinedCallCount() {
+            return pipelinedCalls.get();
+        }
+
+        public double getMeanMillis() {
+            long count = calls.get();
+            return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+        }
 
-            return data;
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
         }
     }
 }
@@ -0,0 +1,270 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only journal of records in a memory-mapped file of fixed size.
+ * <p>
+ * The file starts with the offset of the oldest record that was not discarded yet. Every record is stored as its
+ * length, the CRC32 of its contents, and its contents, and a zero length marks the end of the journal. When the file
+ * is opened, records are read until the end marker or the first record that does not match its checksum, so a record
+ * that was only partly written before a crash is dropped along with everything after it.
+ * <p>
+ * Appending only writes to the mapped memory. {@link #flush()} forces everything appended since the last flush to
+ * disk at once, and is meant to be called at a short fixed rate. Discarding records only moves the start offset; the
+ * file is compacted once all records are discarded, or when the space at the end runs out.
+ * <p>
+ * Compacting copies the records to the start of the file, and the start offset only moves once the copy is on disk.
+ * If the copy overlaps the records being copied, a crash could leave neither intact, so the records are first saved
+ * to a file next to the journal, which is used to redo the copy when the journal is opened again.
+ *
+ * @since 0.5
+ */
+public class MappedJournal implements Closeable {
+    private static final int DATA_START = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int END_MARKER_SIZE = 4;
+
+    private final RandomAccessFile file;
+    private final File compactionFile;
+    private final MappedByteBuffer buffer;
+    // The offset of each record that was not discarded, and the offset just past the last one.
+    private final List<Integer> offsets = new ArrayList<>();
+    private int end;
+    private boolean dirty = false;
+
+    public MappedJournal(File path, int capacity) throws IOException {
+        if (capacity < DATA_START + RECORD_HEADER_SIZE + END_MARKER_SIZE)
+            throw new IllegalArgumentException("capacity is too small");
+        this.file = new RandomAccessFile(path, "rw");
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.compactionFile = new File(path.getPath() + ".compact");
+        if (compactionFile.exists()) {
+            byte[] live = readCompactionFile();
+            // A compaction that did not finish is done again, one that did not get to start is dropped.
+            if (live != null && DATA_START + live.length + END_MARKER_SIZE <= capacity)
+                moveToStart(live);
+            deleteCompactionFile();
+        }
+        recover();
+    }
+
+    private void recover() {
+        int start = buffer.getInt(0);
+        end = start >= DATA_START && start < buffer.capacity() ? start : DATA_START;
+        while (end + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0 || end + RECORD_HEADER_SIZE + length > buffer.capacity())
+                break;
+            if (buffer.getInt(end + 4) != checksum(read(end + RECORD_HEADER_SIZE, length)))
+                break;
+            offsets.add(end);
+            end += RECORD_HEADER_SIZE + length;
+        }
+        if (offsets.isEmpty()) {
+            reset();
+        } else {
+            buffer.putInt(0, offsets.get(0));
+            markEnd();
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private byte[] read(int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(data);
+        return data;
+    }
+
+    private void write(int offset, byte[] data) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(data);
+    }
+
+    private void markEnd() {
+        if (end + END_MARKER_SIZE <= buffer.capacity())
+            buffer.putInt(end, 0);
+        dirty = true;
+    }
+
+    private void reset() {
+        offsets.clear();
+        end = DATA_START;
+        markEnd();
+        buffer.putInt(0, DATA_START);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param record the contents of the record
+     * @return false if the journal is full
+     */
+    public synchronized boolean append(byte[] record) {
+        if (record.length == 0)
+            throw new IllegalArgumentException("empty record");
+        int needed = RECORD_HEADER_SIZE + record.length + END_MARKER_SIZE;
+        if (end + needed > buffer.capacity()) {
+            compact();
+            if (end + needed > buffer.capacity())
+                return false;
+        }
+
+        write(end + RECORD_HEADER_SIZE, record);
+        buffer.putInt(end + RECORD_HEADER_SIZE + record.length, 0);
+        buffer.putInt(end + 4, checksum(record));
+        // The length goes last, so the record only counts once it is complete.
+        buffer.putInt(end, record.length);
+
+        offsets.add(end);
+        end += RECORD_HEADER_SIZE + record.length;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Moves the records to the start of the file, to make room at the end. Nothing is moved if the records can't be
+     * saved elsewhere while the copy overlaps them.
+     */
+    private void compact() {
+        if (offsets.isEmpty() || offsets.get(0) == DATA_START)
+            return;
+        int from = offsets.get(0);
+        byte[] live = read(from, end - from);
+        boolean overlaps = DATA_START + live.length + END_MARKER_SIZE > from;
+        if (overlaps) {
+            try {
+                writeCompactionFile(live);
+            } catch (IOException e) {
+                // The journal was not touched, so it can stay as it is as long as the copy is not used later.
+                deleteCompactionFile();
+                return;
+            }
+        }
+
+        moveToStart(live);
+        for (int i = 0; i < offsets.size(); i++) {
+            offsets.set(i, offsets.get(i) - from + DATA_START);
+        }
+        end = DATA_START + live.length;
+        if (overlaps)
+            deleteCompactionFile();
+    }
+
+    private void deleteCompactionFile() {
+        try {
+            Files.deleteIfExists(compactionFile.toPath());
+        } catch (IOException e) {
+            // Records appended from now on would be cut off if the copy was applied again.
+            throw new RuntimeException("Unable to delete " + compactionFile, e);
+        }
+    }
+
+    /**
+     * Writes the records to the start of the file, and points the start offset at them once they are on disk.
+     */
+    private void moveToStart(byte[] live) {
+        write(DATA_START, live);
+        buffer.putInt(DATA_START + live.length, 0);
+        buffer.force();
+        buffer.putInt(0, DATA_START);
+        buffer.force();
+        dirty = false;
+    }
+
+    private void writeCompactionFile(byte[] live) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(compactionFile, "rw")) {
+            out.setLength(0);
+            out.writeInt(live.length);
+            out.writeInt(checksum(live));
+            out.write(live);
+            out.getChannel().force(true);
+        }
+    }
+
+    /**
+     * @return the records saved before a compaction, or null if they were not completely written
+     */
+    private byte[] readCompactionFile() throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(compactionFile, "r")) {
+            if (in.length() < RECORD_HEADER_SIZE)
+                return null;
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length != in.length() - RECORD_HEADER_SIZE)
+                return null;
+            byte[] live = new byte[length];
+            in.readFully(live);
+            return checksum(live) == checksum ? live : null;
+        }
+    }
+
+    /**
+     * Returns the contents of every record, oldest first.
+     */
+    public synchronized List<byte[]> read() {
+        List<byte[]> records = new ArrayList<>(offsets.size());
+        for (int offset : offsets) {
+            records.add(read(offset + RECORD_HEADER_SIZE, buffer.getInt(offset)));
+        }
+        return records;
+    }
+
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Removes the oldest records.
+     *
+     * @param count the number of records to remove
+     */
+    public synchronized void discard(int count) {
+        count = Math.min(count, offsets.size());
+        if (count == 0)
+            return;
+
+        if (count == offsets.size()) {
+            reset();
+        } else {
+            offsets.subList(0, count).clear();
+            buffer.putInt(0, offsets.get(0));
+            dirty = true;
+        }
+        flush();
+    }
+
+    /**
+     * Forces everything appended since the last flush to disk.
+     */
+    public synchronized void flush() {
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        file.close();
+    }
+}
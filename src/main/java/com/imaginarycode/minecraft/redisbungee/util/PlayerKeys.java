@@ -0,0 +1,125 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import redis.clients.util.SafeEncoder;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * This class builds the Redis keys and set members that identify players.
+ * <p>
+ * By default, UUIDs are stored in their 36-character string form. In binary mode, they are stored as 16 raw bytes,
+ * which roughly halves the size of the online sets. Members are always decoded from either form, so sets can be read
+ * while they are being converted.
+ *
+ * @since 0.5
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class PlayerKeys {
+    public static final byte[] SERVER = SafeEncoder.encode("server");
+    public static final byte[] IP = SafeEncoder.encode("ip");
+    public static final byte[] PROXY = SafeEncoder.encode("proxy");
+    public static final byte[] ONLINE = SafeEncoder.encode("online");
+    public static final byte[] NAME = SafeEncoder.encode("name");
+
+    public static final byte[] LAST_SEEN = SafeEncoder.encode("last-seen");
+
+    private static final byte[] PLAYER_PREFIX = SafeEncoder.encode("player:");
+    private static final int BINARY_LENGTH = 16;
+
+    @Getter
+    @Setter
+    private static volatile boolean binary = false;
+
+    public static byte[] usersOnline(String proxy) {
+        return SafeEncoder.encode("proxy:" + proxy + ":usersOnline");
+    }
+
+    public static byte[] ip(InetAddress address) {
+        return SafeEncoder.encode("ip:" + address.getHostAddress());
+    }
+
+    /**
+     * Returns the key for the /24 (IPv4) or /64 (IPv6) subnet an address is in.
+     */
+    public static byte[] subnet(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int bits = bytes.length == 4 ? 24 : 64;
+        Arrays.fill(bytes, bits / 8, bytes.length, (byte) 0);
+        try {
+            return SafeEncoder.encode("subnet:" + InetAddress.getByAddress(bytes).getHostAddress() + "/" + bits);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("invalid address", e);
+        }
+    }
+
+    public static byte[] member(UUID uuid) {
+        return member(uuid, binary);
+    }
+
+    public static byte[] member(UUID uuid, boolean binary) {
+        return binary ? toBytes(uuid) : SafeEncoder.encode(uuid.toString());
+    }
+
+    public static byte[] player(UUID uuid) {
+        return player(uuid, binary);
+    }
+
+    public static byte[] player(UUID uuid, boolean binary) {
+        byte[] member = member(uuid, binary);
+        byte[] key = Arrays.copyOf(PLAYER_PREFIX, PLAYER_PREFIX.length + member.length);
+        System.arraycopy(member, 0, key, PLAYER_PREFIX.length, member.length);
+        return key;
+    }
+
+    /**
+     * Decodes a set member in either the binary or the string form.
+     *
+     * @param member the set member
+     * @return the UUID
+     * @throws IllegalArgumentException if the member is not a UUID
+     */
+    public static UUID fromMember(byte[] member) {
+        if (member.length == BINARY_LENGTH) {
+            return fromBytes(member);
+        }
+        return UUID.fromString(SafeEncoder.encode(member));
+    }
+
+    /**
+     * Decodes the UUID from a {@code player:} key in either the binary or the string form.
+     *
+     * @param key the key
+     * @return the UUID
+     * @throws IllegalArgumentException if the key is not a player key
+     */
+    public static UUID fromPlayerKey(byte[] key) {
+        if (key.length <= PLAYER_PREFIX.length || !Arrays.equals(PLAYER_PREFIX, Arrays.copyOf(key, PLAYER_PREFIX.length))) {
+            throw new IllegalArgumentException("not a player key");
+        }
+        return fromMember(Arrays.copyOfRange(key, PLAYER_PREFIX.length, key.length));
+    }
+
+    public static boolean isBinaryMember(byte[] member) {
+        return member.length == BINARY_LENGTH;
+    }
+
+    public static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(BINARY_LENGTH)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    public static UUID fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
@@ -172,6 +172,58 @@ public final class UUIDTranslator {
         }
     }
 
+    /**
+     * Looks up the names of many players at once. Online players and locally cached entries are answered right away,
+     * and everything else is fetched from the Redis cache with a single HMGET. Mojang is never asked.
+     *
+     * @param players the players to look up
+     * @return a map of each player to their name, leaving out players whose name is not known
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> players) {
+        Map<UUID, String> names = new HashMap<>(players.size() * 2);
+        List<UUID> missing = new ArrayList<>();
+
+        for (UUID player : players) {
+            if (ProxyServer.getInstance().getPlayer(player) != null) {
+                names.put(player, ProxyServer.getInstance().getPlayer(player).getName());
+                continue;
+            }
+            CachedUUIDEntry cachedUUIDEntry = uuidToNameMap.get(player);
+            if (cachedUUIDEntry != null && !cachedUUIDEntry.expired()) {
+                names.put(player, cachedUUIDEntry.getName());
+            } else {
+                missing.add(player);
+            }
+        }
+
+        if (missing.isEmpty())
+            return names;
+
+        String[] fields = new String[missing.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = missing.get(i).toString();
+        }
+
+        try (Jedis jedis = plugin.getBulkPool().getResource()) {
+            List<String> stored = jedis.hmget("uuid-cache", fields);
+            for (int i = 0; i < fields.length; i++) {
+                if (stored.get(i) == null)
+                    continue;
+                CachedUUIDEntry entry = RedisBungee.getGson().fromJson(stored.get(i), CachedUUIDEntry.class);
+                // Expired entries are left for getNameFromUuid to clean up.
+                if (!entry.expired()) {
+                    nameToUuidMap.put(entry.getName().toLowerCase(), entry);
+                    uuidToNameMap.put(missing.get(i), entry);
+                    names.put(missing.get(i), entry.getName());
+                }
+            }
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to fetch names for " + missing.size() + " players", e);
+        }
+
+        return names;
+    }
+
     public final void persistInfo(String name, UUID uuid, Jedis jedis) {
         addToMaps(name, uuid);
         String json = RedisBungee.getGson().toJson(uuidToNameMap.get(uuid));
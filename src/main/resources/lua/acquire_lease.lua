@@ -0,0 +1,11 @@
+-- Takes the lease in KEYS[1] for ARGV[1], or renews it if ARGV[1] already holds it, for ARGV[2] milliseconds.
+if redis.call("SET", KEYS[1], ARGV[1], "NX", "PX", ARGV[2]) then
+    return 1
+end
+
+if redis.call("GET", KEYS[1]) == ARGV[1] then
+    redis.call("PEXPIRE", KEYS[1], ARGV[2])
+    return 1
+end
+
+return 0
@@ -0,0 +1,29 @@
+-- Marks a player as online on our proxy and publishes the join, see NetworkEventStream#publishWith.
+-- KEYS[1] is the fencing token of our proxy ID, KEYS[2] the event stream, KEYS[3] our set of online players and
+-- KEYS[4] the player. ARGV[1] is our fencing token, ARGV[2] the event, or empty to publish nothing, ARGV[3] the maximum
+-- length of the stream, or empty to publish on the ARGV[4] channel instead, ARGV[5] the player's member of the online
+-- set, ARGV[6] their name, ARGV[7] their address, ARGV[8] our proxy ID and ARGV[9] their server, or empty if they are
+-- not on one yet.
+if ARGV[3] ~= "" and ARGV[2] ~= "" then
+    -- XADD with an automatic ID is non-deterministic, so replicate the effects instead of the script.
+    redis.replicate_commands()
+end
+
+if redis.call("GET", KEYS[1]) ~= ARGV[1] then
+    return false
+end
+
+redis.call("SADD", KEYS[3], ARGV[5])
+redis.call("HMSET", KEYS[4], "online", "0", "ip", ARGV[7], "proxy", ARGV[8], "name", ARGV[6])
+if ARGV[9] ~= "" then
+    redis.call("HSET", KEYS[4], "server", ARGV[9])
+end
+
+if ARGV[2] ~= "" then
+    if ARGV[3] ~= "" then
+        redis.call("XADD", KEYS[2], "MAXLEN", "~", ARGV[3], "*", "message", ARGV[2])
+    else
+        redis.call("PUBLISH", ARGV[4], ARGV[2])
+    end
+end
+return true
@@ -0,0 +1,30 @@
+-- Marks a player as offline and publishes the change, see NetworkEventStream#publishWith.
+-- KEYS[1] is the fencing token of our proxy ID, KEYS[2] the event stream, KEYS[3] our set of online players,
+-- KEYS[4] the player and KEYS[5] the index of when players were last seen. ARGV[1] is our fencing token, ARGV[2] the
+-- event, ARGV[3] the maximum length of the stream, or empty to publish on the ARGV[4] channel instead, ARGV[5] the
+-- player's member of the online set and ARGV[6] the time they left. ARGV[7] is the time before which players are
+-- dropped from the index, or empty if the index is not kept.
+if ARGV[3] ~= "" then
+    -- XADD with an automatic ID is non-deterministic, so replicate the effects instead of the script.
+    redis.replicate_commands()
+end
+
+if redis.call("GET", KEYS[1]) ~= ARGV[1] then
+    return false
+end
+
+redis.call("SREM", KEYS[3], ARGV[5])
+redis.call("HDEL", KEYS[4], "server", "ip", "proxy")
+redis.call("HSET", KEYS[4], "online", ARGV[6])
+
+if ARGV[7] ~= "" then
+    redis.call("ZADD", KEYS[5], ARGV[6], ARGV[5])
+    redis.call("ZREMRANGEBYSCORE", KEYS[5], 0, ARGV[7])
+end
+
+if ARGV[3] ~= "" then
+    redis.call("XADD", KEYS[2], "MAXLEN", "~", ARGV[3], "*", "message", ARGV[2])
+else
+    redis.call("PUBLISH", ARGV[4], ARGV[2])
+end
+return true
@@ -0,0 +1,27 @@
+-- Moves a player to another server and publishes the change, see NetworkEventStream#publishWith.
+-- KEYS[1] is the fencing token of our proxy ID, KEYS[2] the event stream, KEYS[3] our set of online players and
+-- KEYS[4] the player. ARGV[1] is our fencing token, ARGV[2] the event, ARGV[3] the maximum length of the stream, or
+-- empty to publish on the ARGV[4] channel instead, ARGV[5] the player's member of the online set and ARGV[6] the
+-- server.
+if ARGV[3] ~= "" then
+    -- XADD with an automatic ID is non-deterministic, so replicate the effects instead of the script.
+    redis.replicate_commands()
+end
+
+if redis.call("GET", KEYS[1]) ~= ARGV[1] then
+    return false
+end
+
+-- The player may have left while this change was on its way.
+if redis.call("SISMEMBER", KEYS[3], ARGV[5]) == 0 then
+    return false
+end
+
+redis.call("HSET", KEYS[4], "server", ARGV[6])
+
+if ARGV[3] ~= "" then
+    redis.call("XADD", KEYS[2], "MAXLEN", "~", ARGV[3], "*", "message", ARGV[2])
+else
+    redis.call("PUBLISH", ARGV[4], ARGV[2])
+end
+return true
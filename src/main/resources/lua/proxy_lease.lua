@@ -0,0 +1,29 @@
+-- Takes, renews or releases the lease on a proxy ID.
+-- KEYS[1] is the lease and KEYS[2] the fencing token of the proxy ID. ARGV[1] identifies this instance, and ARGV[2]
+-- is the lease time in milliseconds, or 0 to release the lease.
+-- Returns the fencing token of this instance, or minus the milliseconds left on the lease held by another instance.
+local holder = redis.call("GET", KEYS[1])
+
+if ARGV[2] == "0" then
+    if holder == ARGV[1] then
+        redis.call("DEL", KEYS[1])
+    end
+    return 0
+end
+
+if holder == ARGV[1] then
+    redis.call("PEXPIRE", KEYS[1], ARGV[2])
+    local token = redis.call("GET", KEYS[2])
+    if token then
+        return tonumber(token)
+    end
+    return redis.call("INCR", KEYS[2])
+end
+
+if holder then
+    return -math.max(redis.call("PTTL", KEYS[1]), 1)
+end
+
+-- Every new holder gets a higher token, so writes made under an older token can be told apart.
+redis.call("SET", KEYS[1], ARGV[1], "PX", ARGV[2])
+return redis.call("INCR", KEYS[2])
@@ -0,0 +1,13 @@
+-- Raises each field of the hash in KEYS[1] to the given value if it is higher, then sets the TTL to ARGV[1] seconds.
+-- The remaining arguments are field and value pairs.
+local c = redis.call
+
+for i = 2, #ARGV, 2 do
+    local current = tonumber(c("HGET", KEYS[1], ARGV[i]))
+    if not current or current < tonumber(ARGV[i + 1]) then
+        c("HSET", KEYS[1], ARGV[i], ARGV[i + 1])
+    end
+end
+
+c("EXPIRE", KEYS[1], ARGV[1])
+return 0
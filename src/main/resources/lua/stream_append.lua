@@ -0,0 +1,9 @@
+-- XADD with an automatic ID is non-deterministic, so replicate the effects instead of the script.
+redis.replicate_commands()
+
+-- KEYS[2] holds the fencing token of the proxy ID. Events from an instance that lost its lease are dropped.
+if redis.call("GET", KEYS[2]) ~= ARGV[3] then
+    return false
+end
+
+return redis.call("XADD", KEYS[1], "MAXLEN", "~", ARGV[1], "*", "message", ARGV[2])
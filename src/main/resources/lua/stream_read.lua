@@ -0,0 +1,36 @@
+local call = redis.call
+local ipairs = ipairs
+
+-- XREAD can't be used from a script, so we read a batch with XRANGE starting at the last ID we processed.
+local lastId = ARGV[1]
+
+if lastId == "$" then
+    local last = call("XREVRANGE", KEYS[1], "+", "-", "COUNT", 1)
+    if #last == 0 then
+        return { "0-0" }
+    end
+    return { last[1][1] }
+end
+
+local entries = call("XRANGE", KEYS[1], lastId, "+", "COUNT", tonumber(ARGV[2]) + 1)
+
+-- The first element tells whether the entry we processed last was trimmed, in which case entries after it may have
+-- been trimmed too. The IDs and messages of the batch follow.
+local result = { "0" }
+if lastId ~= "0-0" and (#entries == 0 or entries[1][1] ~= lastId) then
+    result[1] = "1"
+end
+
+for _, entry in ipairs(entries) do
+    if entry[1] ~= lastId then
+        local fields = entry[2]
+        for i = 1, #fields, 2 do
+            if fields[i] == "message" then
+                result[#result + 1] = entry[1]
+                result[#result + 1] = fields[i + 1]
+            end
+        end
+    end
+end
+
+return result
@@ -0,0 +1,15 @@
+-- Replaces the member ARGV[1] of the sorted set in KEYS[1] with ARGV[2], keeping the higher score if ARGV[2] is
+-- already in the set. Returns whether ARGV[1] was in the set.
+local c = redis.call
+
+local old = c("ZSCORE", KEYS[1], ARGV[1])
+if not old then
+    return 0
+end
+
+local current = c("ZSCORE", KEYS[1], ARGV[2])
+if not current or tonumber(current) < tonumber(old) then
+    c("ZADD", KEYS[1], old, ARGV[2])
+end
+c("ZREM", KEYS[1], ARGV[1])
+return 1
@@ -0,0 +1,72 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.UUID;
+
+public class DegradedModeTest {
+    private static final UUID PLAYER = UUID.randomUUID();
+    private static final UUID OTHER = UUID.randomUUID();
+
+    private static DegradedMode.Mutation join(UUID player) {
+        return DegradedMode.Mutation.join(player, "player", InetAddress.getLoopbackAddress(), true);
+    }
+
+    @Test
+    public void testRejoinKeepsLastLeaveAndJoin() {
+        DegradedMode.Mutation join = join(PLAYER);
+        DegradedMode.Mutation leave = DegradedMode.Mutation.leave(PLAYER);
+        DegradedMode.Mutation rejoin = join(PLAYER);
+
+        Assert.assertEquals(Arrays.asList(leave, rejoin),
+                DegradedMode.deduplicate(Arrays.asList(join, leave, rejoin)));
+    }
+
+    @Test
+    public void testLeaveDropsEarlierServerChange() {
+        DegradedMode.Mutation join = join(PLAYER);
+        DegradedMode.Mutation change = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+        DegradedMode.Mutation leave = DegradedMode.Mutation.leave(PLAYER);
+
+        Assert.assertEquals(Arrays.asList(join, leave),
+                DegradedMode.deduplicate(Arrays.asList(join, change, leave)));
+    }
+
+    @Test
+    public void testOnlyLastServerChangeIsKept() {
+        DegradedMode.Mutation join = join(PLAYER);
+        DegradedMode.Mutation first = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+        DegradedMode.Mutation second = DegradedMode.Mutation.serverChange(PLAYER, "survival", "lobby");
+        DegradedMode.Mutation third = DegradedMode.Mutation.serverChange(PLAYER, "creative", "survival");
+
+        Assert.assertEquals(Arrays.asList(join, third),
+                DegradedMode.deduplicate(Arrays.asList(join, first, second, third)));
+    }
+
+    @Test
+    public void testServerChangeAfterRejoinIsKept() {
+        DegradedMode.Mutation join = join(PLAYER);
+        DegradedMode.Mutation change = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+        DegradedMode.Mutation leave = DegradedMode.Mutation.leave(PLAYER);
+        DegradedMode.Mutation rejoin = join(PLAYER);
+        DegradedMode.Mutation rejoinChange = DegradedMode.Mutation.serverChange(PLAYER, "survival", null);
+
+        Assert.assertEquals(Arrays.asList(leave, rejoin, rejoinChange),
+                DegradedMode.deduplicate(Arrays.asList(join, change, leave, rejoin, rejoinChange)));
+    }
+
+    @Test
+    public void testPlayersAreDeduplicatedSeparately() {
+        DegradedMode.Mutation join = join(PLAYER);
+        DegradedMode.Mutation otherJoin = join(OTHER);
+        DegradedMode.Mutation change = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+        DegradedMode.Mutation otherChange = DegradedMode.Mutation.serverChange(OTHER, "lobby", null);
+        DegradedMode.Mutation otherLeave = DegradedMode.Mutation.leave(OTHER);
+
+        Assert.assertEquals(Arrays.asList(join, otherJoin, change, otherLeave),
+                DegradedMode.deduplicate(Arrays.asList(join, otherJoin, change, otherChange, otherLeave)));
+    }
+}
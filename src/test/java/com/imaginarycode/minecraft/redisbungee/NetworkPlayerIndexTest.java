@@ -0,0 +1,111 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+public class NetworkPlayerIndexTest {
+    private static final UUID FIRST = UUID.randomUUID();
+    private static final UUID SECOND = UUID.randomUUID();
+    private static final UUID THIRD = UUID.randomUUID();
+
+    private final NetworkPlayerIndex index = new NetworkPlayerIndex();
+
+    private void reload() {
+        // No proxies, so the snapshot holds only the events buffered while loading it.
+        index.loadSnapshot(null, Collections.<String>emptyList(), null, Logger.getAnonymousLogger());
+    }
+
+    @Test
+    public void testJoinAndLeaveCancelOut() {
+        index.join(FIRST, "proxy", "first");
+        long since = index.getVersion();
+
+        index.join(SECOND, "proxy", "second");
+        index.join(THIRD, "proxy", "third");
+        index.leave(THIRD);
+        // A player who was online before and came back has not changed either.
+        index.leave(FIRST);
+        index.join(FIRST, "proxy", "first");
+
+        OnlinePlayerChanges changes = index.changesSince(since);
+        Assert.assertFalse(changes.isFull());
+        Assert.assertEquals(index.getVersion(), changes.getVersion());
+        Assert.assertEquals(ImmutableSet.of(SECOND), changes.getJoined());
+        Assert.assertEquals(ImmutableSet.of(), changes.getLeft());
+    }
+
+    @Test
+    public void testLeaveIsReported() {
+        index.join(FIRST, "proxy", "first");
+        index.join(SECOND, "proxy", "second");
+        long since = index.getVersion();
+
+        index.leave(FIRST);
+
+        OnlinePlayerChanges changes = index.changesSince(since);
+        Assert.assertFalse(changes.isFull());
+        Assert.assertEquals(ImmutableSet.of(), changes.getJoined());
+        Assert.assertEquals(ImmutableSet.of(FIRST), changes.getLeft());
+        Assert.assertTrue(index.changesSince(changes.getVersion()).getJoined().isEmpty());
+    }
+
+    @Test
+    public void testOverflowedLogReturnsFullSet() {
+        long since = index.getVersion();
+        for (int i = 0; i < 10000; i++) {
+            index.join(UUID.randomUUID(), "proxy", null);
+        }
+
+        OnlinePlayerChanges changes = index.changesSince(since);
+        Assert.assertTrue(changes.isFull());
+        Assert.assertEquals(10000, changes.getJoined().size());
+        Assert.assertEquals(ImmutableSet.of(), changes.getLeft());
+
+        // Recent versions are still in the log.
+        changes = index.changesSince(index.getVersion() - 10);
+        Assert.assertFalse(changes.isFull());
+        Assert.assertEquals(10, changes.getJoined().size());
+    }
+
+    @Test
+    public void testUnknownVersionReturnsFullSet() {
+        index.join(FIRST, "proxy", "first");
+
+        OnlinePlayerChanges changes = index.changesSince(index.getVersion() + 1);
+        Assert.assertTrue(changes.isFull());
+        Assert.assertEquals(ImmutableSet.of(FIRST), changes.getJoined());
+    }
+
+    @Test
+    public void testSnapshotResetsLog() {
+        index.join(FIRST, "proxy", "first");
+        long before = index.getVersion();
+
+        index.beginLoading();
+        Assert.assertFalse(index.isWarm());
+        index.join(SECOND, "proxy", "second");
+        reload();
+        Assert.assertTrue(index.isWarm());
+
+        // Changes from before the reload are unknown.
+        OnlinePlayerChanges changes = index.changesSince(before);
+        Assert.assertTrue(changes.isFull());
+        Assert.assertEquals(ImmutableSet.of(SECOND), changes.getJoined());
+
+        long after = changes.getVersion();
+        Assert.assertTrue(after > before);
+        changes = index.changesSince(after);
+        Assert.assertFalse(changes.isFull());
+        Assert.assertTrue(changes.getJoined().isEmpty());
+
+        index.join(THIRD, "proxy", "third");
+        changes = index.changesSince(after);
+        Assert.assertFalse(changes.isFull());
+        Assert.assertEquals(ImmutableSet.of(THIRD), changes.getJoined());
+    }
+}
@@ -0,0 +1,93 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ServerChangeCoalescerTest {
+    private static final UUID PLAYER = UUID.randomUUID();
+
+    private final List<DegradedMode.Mutation> written = new ArrayList<>();
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final DegradedMode degradedMode = new DegradedMode(null, false, 1, null) {
+        @Override
+        void write(Mutation mutation) {
+            written.add(mutation);
+        }
+    };
+    // Holds on to the scheduled flushes, so that the test decides when windows close.
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1) {
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            scheduled.add(command);
+            return null;
+        }
+    };
+
+    private void runScheduled() {
+        List<Runnable> tasks = new ArrayList<>(scheduled);
+        scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void testFirstChangeIsWrittenRightAway() {
+        ServerChangeCoalescer coalescer = new ServerChangeCoalescer(degradedMode, timer, 60000);
+        DegradedMode.Mutation change = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+
+        Assert.assertSame(change, coalescer.offer(change));
+        Assert.assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void testChangesInWindowAreMerged() {
+        ServerChangeCoalescer coalescer = new ServerChangeCoalescer(degradedMode, timer, 60000);
+        coalescer.offer(DegradedMode.Mutation.serverChange(PLAYER, "lobby", null));
+
+        Assert.assertNull(coalescer.offer(DegradedMode.Mutation.serverChange(PLAYER, "survival", "lobby")));
+        Assert.assertNull(coalescer.offer(DegradedMode.Mutation.serverChange(PLAYER, "creative", "survival")));
+        Assert.assertEquals(1, scheduled.size());
+        Assert.assertTrue(written.isEmpty());
+
+        runScheduled();
+        Assert.assertEquals(1, written.size());
+        DegradedMode.Mutation merged = written.get(0);
+        Assert.assertEquals(PLAYER, merged.getPlayer());
+        Assert.assertEquals("creative", merged.getServer());
+        Assert.assertEquals("lobby", merged.getPreviousServer());
+    }
+
+    @Test
+    public void testLeavingDropsPendingChange() {
+        ServerChangeCoalescer coalescer = new ServerChangeCoalescer(degradedMode, timer, 60000);
+        coalescer.offer(DegradedMode.Mutation.serverChange(PLAYER, "lobby", null));
+        coalescer.offer(DegradedMode.Mutation.serverChange(PLAYER, "survival", "lobby"));
+
+        coalescer.playerLeft(PLAYER);
+        runScheduled();
+        Assert.assertTrue(written.isEmpty());
+
+        // A new session starts without a window.
+        DegradedMode.Mutation change = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+        Assert.assertSame(change, coalescer.offer(change));
+    }
+
+    @Test
+    public void testNoWindowWritesEveryChange() {
+        ServerChangeCoalescer coalescer = new ServerChangeCoalescer(degradedMode, timer, 0);
+        DegradedMode.Mutation first = DegradedMode.Mutation.serverChange(PLAYER, "lobby", null);
+        DegradedMode.Mutation second = DegradedMode.Mutation.serverChange(PLAYER, "survival", "lobby");
+
+        Assert.assertSame(first, coalescer.offer(first));
+        Assert.assertSame(second, coalescer.offer(second));
+        Assert.assertTrue(scheduled.isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.imaginarycode.minecraft.redisbungee.util.JsonPeek;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.UUID;
+
+/**
+ * Compares the allocation per redisbungee-data message of the old decoding path (full JsonObject tree, then a
+ * Gson conversion with a fresh TypeToken) with the new one (peeking at the source and action, then a cached adapter).
+ * <p>
+ * This only prints its measurements, as they depend on the JVM it runs on. Run its main method by hand; it is not
+ * part of the test suite.
+ */
+public class DataMessageDecodeBenchmark {
+    private static final int ITERATIONS = 20000;
+    private static final String SOURCE_FIELD = "\"source\":\"";
+    private static final String ACTION_FIELD = "\"action\":\"";
+    private static final Action[] ACTIONS = Action.values();
+
+    private final Gson gson = new Gson();
+    private final JsonParser parser = new JsonParser();
+    private final TypeAdapter<Message<LoginPayload>> adapter = gson.getAdapter(new TypeToken<Message<LoginPayload>>() {
+    });
+
+    private String message(String source) throws Exception {
+        return gson.toJson(new Message<>(UUID.randomUUID(), source, Action.JOIN, new LoginPayload(InetAddress.getByName("127.0.0.1"))));
+    }
+
+    private Object decodeBefore(String message, String serverId) {
+        JsonObject jsonObject = parser.parse(message).getAsJsonObject();
+        if (jsonObject.get("source").getAsString().equals(serverId))
+            return null;
+        Action.valueOf(jsonObject.get("action").getAsString());
+        return gson.fromJson(jsonObject, new TypeToken<Message<LoginPayload>>() {
+        }.getType());
+    }
+
+    private Object decodeAfter(String message, String serverId) throws IOException {
+        if (JsonPeek.valueEquals(message, SOURCE_FIELD, serverId))
+            return null;
+        JsonPeek.valueOf(message, ACTION_FIELD, ACTIONS);
+        return adapter.fromJson(message);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private long measure(String message, boolean after) throws Exception {
+        // Warm up first, so that class loading and JIT compilation are not counted.
+        for (int i = 0; i < ITERATIONS; i++) {
+            Object decoded = after ? decodeAfter(message, "proxy1") : decodeBefore(message, "proxy1");
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Object decoded = after ? decodeAfter(message, "proxy1") : decodeBefore(message, "proxy1");
+        }
+        return (allocatedBytes() - start) / ITERATIONS;
+    }
+
+    private void run() throws Exception {
+        String remote = message("proxy2");
+        String self = message("proxy1");
+
+        long remoteBefore = measure(remote, false), remoteAfter = measure(remote, true);
+        long selfBefore = measure(self, false), selfAfter = measure(self, true);
+
+        System.out.println("Bytes allocated per message from another proxy: " + remoteBefore + " before, " + remoteAfter + " after");
+        System.out.println("Bytes allocated per message from this proxy: " + selfBefore + " before, " + selfAfter + " after");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new DataMessageDecodeBenchmark().run();
+    }
+
+    private enum Action {
+        JOIN,
+        LEAVE,
+        SERVER_CHANGE
+    }
+
+    private static class Message<T> {
+        private final UUID target;
+        private final String source;
+        private final Action action;
+        private final T payload;
+
+        Message(UUID target, String source, Action action, T payload) {
+            this.target = target;
+            this.source = source;
+            this.action = action;
+            this.payload = payload;
+        }
+    }
+
+    private static class LoginPayload {
+        private final InetAddress address;
+
+        LoginPayload(InetAddress address) {
+            this.address = address;
+        }
+    }
+}
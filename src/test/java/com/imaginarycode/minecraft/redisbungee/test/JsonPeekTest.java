@@ -0,0 +1,62 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.gson.Gson;
+import com.imaginarycode.minecraft.redisbungee.util.JsonPeek;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class JsonPeekTest {
+    private static final String SOURCE_FIELD = "\"source\":\"";
+    private static final String ACTION_FIELD = "\"action\":\"";
+
+    private final String message = new Gson().toJson(new Message(UUID.randomUUID(), "proxy1", Action.SERVER_CHANGE));
+
+    @Test
+    public void testValueIndex() {
+        int index = JsonPeek.valueIndex(message, SOURCE_FIELD);
+        Assert.assertTrue(message.startsWith("proxy1\"", index));
+        Assert.assertEquals(-1, JsonPeek.valueIndex(message, "\"missing\":\""));
+    }
+
+    @Test
+    public void testValueEquals() {
+        Assert.assertTrue(JsonPeek.valueEquals(message, SOURCE_FIELD, "proxy1"));
+        // Neither a prefix nor a longer value of the same field matches.
+        Assert.assertFalse(JsonPeek.valueEquals(message, SOURCE_FIELD, "proxy"));
+        Assert.assertFalse(JsonPeek.valueEquals(message, SOURCE_FIELD, "proxy10"));
+        Assert.assertFalse(JsonPeek.valueEquals(message, "\"missing\":\"", "proxy1"));
+    }
+
+    @Test
+    public void testValueOf() {
+        Assert.assertEquals(Action.SERVER_CHANGE, JsonPeek.valueOf(message, ACTION_FIELD, Action.values()));
+        Assert.assertEquals(Action.JOIN, JsonPeek.valueOf(new Gson().toJson(new Message(UUID.randomUUID(), "proxy1", Action.JOIN)),
+                ACTION_FIELD, Action.values()));
+        Assert.assertNull(JsonPeek.valueOf(message, ACTION_FIELD, Other.values()));
+        Assert.assertNull(JsonPeek.valueOf(message, "\"missing\":\"", Action.values()));
+    }
+
+    private enum Action {
+        JOIN,
+        SERVER,
+        SERVER_CHANGE
+    }
+
+    private enum Other {
+        SERVER
+    }
+
+    private static class Message {
+        private final UUID target;
+        private final String source;
+        private final Action action;
+
+        Message(UUID target, String source, Action action) {
+            this.target = target;
+            this.source = source;
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.MappedJournal;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MappedJournalTest {
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> strings(List<byte[]> records) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] record : records) {
+            strings.add(new String(record, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    private static File tempFile() throws Exception {
+        File file = File.createTempFile("journal", ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testRecordsSurviveReopening() throws Exception {
+        File file = tempFile();
+        try (MappedJournal journal = new MappedJournal(file, 4096)) {
+            Assert.assertTrue(journal.append(bytes("one")));
+            Assert.assertTrue(journal.append(bytes("two")));
+            Assert.assertTrue(journal.append(bytes("three")));
+            journal.discard(1);
+        }
+        try (MappedJournal journal = new MappedJournal(file, 4096)) {
+            Assert.assertEquals(2, journal.size());
+            Assert.assertEquals(Arrays.asList("two", "three"), strings(journal.read()));
+            journal.discard(2);
+        }
+        try (MappedJournal journal = new MappedJournal(file, 4096)) {
+            Assert.assertEquals(0, journal.size());
+        }
+    }
+
+    @Test
+    public void testCorruptRecordEndsJournal() throws Exception {
+        File file = tempFile();
+        try (MappedJournal journal = new MappedJournal(file, 4096)) {
+            journal.append(bytes("intact"));
+            journal.append(bytes("torn"));
+        }
+        // Damage the contents of the second record: 4 byte start offset, then 8 byte header + 6 bytes, then 8 bytes.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4 + 8 + 6 + 8);
+            raf.write('X');
+        }
+        try (MappedJournal journal = new MappedJournal(file, 4096)) {
+            Assert.assertEquals(Collections.singletonList("intact"), strings(journal.read()));
+            // New records replace the damaged one.
+            journal.append(bytes("next"));
+            Assert.assertEquals(Arrays.asList("intact", "next"), strings(journal.read()));
+        }
+    }
+
+    @Test
+    public void testFullJournalCompactsAndRefuses() throws Exception {
+        File file = tempFile();
+        // Room for exactly two 8 byte records and the end marker.
+        try (MappedJournal journal = new MappedJournal(file, 4 + 2 * 16 + 4)) {
+            Assert.assertTrue(journal.append(bytes("record-1")));
+            Assert.assertTrue(journal.append(bytes("record-2")));
+            Assert.assertFalse(journal.append(bytes("record-3")));
+            journal.discard(1);
+            Assert.assertTrue(journal.append(bytes("record-3")));
+            Assert.assertEquals(Arrays.asList("record-2", "record-3"), strings(journal.read()));
+        }
+    }
+
+    @Test
+    public void testInterruptedCompactionIsRedone() throws Exception {
+        File file = tempFile();
+        try (MappedJournal journal = new MappedJournal(file, 4 + 2 * 16 + 4)) {
+            journal.append(bytes("record-1"));
+            journal.append(bytes("record-2"));
+            journal.discard(1);
+        }
+        // Save the remaining record as a compaction would, then damage it as if the copy had been cut short.
+        byte[] live = new byte[16];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4 + 16);
+            raf.readFully(live);
+            raf.seek(4 + 16 + 8);
+            raf.write('X');
+        }
+        CRC32 crc = new CRC32();
+        crc.update(live, 0, live.length);
+        File compactionFile = new File(file.getPath() + ".compact");
+        compactionFile.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(compactionFile, "rw")) {
+            raf.writeInt(live.length);
+            raf.writeInt((int) crc.getValue());
+            raf.write(live);
+        }
+
+        try (MappedJournal journal = new MappedJournal(file, 4 + 2 * 16 + 4)) {
+            Assert.assertEquals(Collections.singletonList("record-2"), strings(journal.read()));
+            Assert.assertFalse(compactionFile.exists());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.PlayerKeys;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+public class PlayerKeysTest {
+    private final UUID uuid = UUID.fromString("68ec43f7-234b-41b4-8764-dfb38b9ffe8c");
+
+    @Test
+    public void testBinaryMembers() {
+        byte[] member = PlayerKeys.member(uuid, true);
+        Assert.assertEquals(16, member.length);
+        Assert.assertEquals(uuid, PlayerKeys.fromMember(member));
+        Assert.assertEquals(uuid, PlayerKeys.fromPlayerKey(PlayerKeys.player(uuid, true)));
+    }
+
+    @Test
+    public void testStringMembers() {
+        byte[] member = PlayerKeys.member(uuid, false);
+        Assert.assertEquals(uuid.toString(), new String(member, StandardCharsets.UTF_8));
+        Assert.assertEquals(uuid, PlayerKeys.fromMember(member));
+        Assert.assertEquals("player:" + uuid, new String(PlayerKeys.player(uuid, false), StandardCharsets.UTF_8));
+        Assert.assertEquals(uuid, PlayerKeys.fromPlayerKey(PlayerKeys.player(uuid, false)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPlayerKey() {
+        PlayerKeys.fromPlayerKey("uuid-cache".getBytes(StandardCharsets.UTF_8));
+    }
+}